@@ -0,0 +1,125 @@
+import java.util.*;
+
+/**
+ * A batch of independent proposals decided in one run of the protocol, rather than one run per proposal. Given to the
+ * Coordinator as one option per proposal, each a comma separated list of its options, e.g. "yes,no red,green,blue", and
+ * enabled explicitly (-Dconsensus.ballot=true, or ConsensusCluster.proposeBatch()). A vote (and a decision) is
+ * packed into a single token holding one base-36 digit per proposal, the index of the option chosen, so "02" above is
+ * a vote for yes and blue. Votes travel and are combined exactly as a single option would be, only the tally is per proposal.
+ * @author Oscar van Leusen
+ */
+class Ballot {
+    private static final Random random = new Random();
+
+    private final List<List<String>> proposals = new ArrayList<>();
+
+    /**
+     * @param options One per proposal, each a comma separated list of its options (a proposal can have just one)
+     */
+    Ballot(Collection<String> options) {
+        for (String proposal : options) {
+            List<String> proposalOptions = Arrays.asList(proposal.split(","));
+            if (proposalOptions.size() > Character.MAX_RADIX) {
+                throw new IllegalArgumentException("A proposal can have at most " + Character.MAX_RADIX + " options: " + proposal);
+            }
+            proposals.add(proposalOptions);
+        }
+    }
+
+    int size() {
+        return proposals.size();
+    }
+
+    /**
+     * @return A vote for a random option in every proposal
+     */
+    String randomVote() {
+        char[] vote = new char[proposals.size()];
+        for (int i = 0; i < vote.length; i++) {
+            vote[i] = Character.forDigit(random.nextInt(proposals.get(i).size()), Character.MAX_RADIX);
+        }
+        return new String(vote);
+    }
+
+    /**
+     * @param choices For each proposal, the digits of the options still being voted between
+     * @return A vote for a random one of the choices in every proposal
+     */
+    String randomVote(List<String> choices) {
+        char[] vote = new char[choices.size()];
+        for (int i = 0; i < vote.length; i++) {
+            String proposalChoices = choices.get(i);
+            vote[i] = proposalChoices.charAt(random.nextInt(proposalChoices.length()));
+        }
+        return new String(vote);
+    }
+
+    /**
+     * Tallies every proposal separately. A proposal with a majority is narrowed to its winner, a tie to the tied options,
+     * and anything else to every option voted for, matching how a single vote is restarted.
+     * @param votes Packed votes, one per participant
+     * @return For each proposal, the digits of the options still in contention
+     */
+    List<String> tally(Collection<String> votes) {
+        List<String> choices = new ArrayList<>(proposals.size());
+        for (int i = 0; i < proposals.size(); i++) {
+            int[] votesCount = new int[proposals.get(i).size()];
+            for (String vote : votes) {
+                int option = i < vote.length() ? Character.digit(vote.charAt(i), Character.MAX_RADIX) : -1;
+                if (option >= 0 && option < votesCount.length) {
+                    votesCount[option]++;
+                }
+            }
+            int maxVotes = 0;
+            for (int count : votesCount) {
+                maxVotes = Math.max(maxVotes, count);
+            }
+            StringBuilder majority = new StringBuilder();
+            StringBuilder votedFor = new StringBuilder();
+            for (int option = 0; option < votesCount.length; option++) {
+                if (votesCount[option] > 0) {
+                    votedFor.append(Character.forDigit(option, Character.MAX_RADIX));
+                    if (votesCount[option] == maxVotes) {
+                        majority.append(Character.forDigit(option, Character.MAX_RADIX));
+                    }
+                }
+            }
+            if (majority.length() == 1 && maxVotes * 2 <= votes.size()) {
+                choices.add(votedFor.toString()); //Most votes, but not a majority
+            } else {
+                choices.add(majority.toString());
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * @return The packed decision if tally() narrowed every proposal to one option, otherwise null
+     */
+    static String decision(List<String> choices) {
+        StringBuilder decision = new StringBuilder(choices.size());
+        for (String proposalChoices : choices) {
+            if (proposalChoices.length() != 1) {
+                return null;
+            }
+            decision.append(proposalChoices);
+        }
+        return decision.toString();
+    }
+
+    /**
+     * @return The option chosen in each proposal by a packed vote or decision
+     */
+    List<String> decode(String vote) {
+        List<String> chosen = new ArrayList<>(proposals.size());
+        for (int i = 0; i < proposals.size(); i++) {
+            chosen.add(proposals.get(i).get(Character.digit(vote.charAt(i), Character.MAX_RADIX)));
+        }
+        return chosen;
+    }
+
+    @Override
+    public String toString() {
+        return proposals.size() + " proposals " + proposals;
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs the consensus protocol inside another application rather than as separate Coordinator and Participant processes.
+ * Each call to propose() starts a Coordinator and a set of Participants on free ports in this process, and returns a
+ * future for the overall vote, so several decisions can be in flight at once.
+ * <pre>
+ * try (ConsensusCluster cluster = new ConsensusCluster(5, 3000)) {
+ *     String choice = cluster.propose(Arrays.asList("A", "B", "C")).join();
+ * }
+ * </pre>
+ * @author Oscar van Leusen
+ */
+class ConsensusCluster implements AutoCloseable {
+    private final int participants;
+    private final int timeout;
+    private final Set<Coordinator> coordinators = ConcurrentHashMap.newKeySet(); //Decisions still in flight
+    private final Set<Participant> members = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * @param participants Number of participants voting on each proposal
+     * @param timeout Time in ms after which a silent participant is considered failed
+     */
+    ConsensusCluster(int participants, int timeout) {
+        if (participants < 1) {
+            throw new IllegalArgumentException("At least one participant is required");
+        }
+        this.participants = participants;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts a vote between the given options, shared peer-to-peer unless -Dconsensus.votingMode says otherwise
+     * @return The overall vote, completed exceptionally if the vote couldn't be started or close() is called first
+     */
+    CompletableFuture<String> propose(Collection<String> options) {
+        return propose(options, Coordinator.votingMode.valueOf(System.getProperty("consensus.votingMode", "mesh").toUpperCase()));
+    }
+
+    /**
+     * Starts a vote between the given options
+     * @param mode MESH to share votes peer-to-peer, or STAR to collect them at the Coordinator
+     * @return The overall vote, completed exceptionally if the vote couldn't be started or close() is called first
+     */
+    CompletableFuture<String> propose(Collection<String> options, Coordinator.votingMode mode) {
+        return propose(options, mode, false);
+    }
+
+    private CompletableFuture<String> propose(Collection<String> options, Coordinator.votingMode mode, boolean isBallot) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("ConsensusCluster has been closed"));
+        }
+        Coordinator coordinator;
+        try {
+            coordinator = new Coordinator(0, participants, options, mode, isBallot);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        coordinators.add(coordinator);
+        CompletableFuture<String> outcome = coordinator.start();
+
+        List<Participant> started = new ArrayList<>();
+        try {
+            for (int i = 0; i < participants; i++) {
+                Participant participant = new Participant(coordinator.getPort(), 0, timeout, Participant.failureCondition.SUCCESS);
+                started.add(participant);
+                members.add(participant);
+                participant.start();
+            }
+        } catch (IOException e) {
+            coordinator.close();
+        }
+
+        return outcome.whenComplete((result, error) -> {
+            coordinators.remove(coordinator);
+            for (Participant participant : started) {
+                members.remove(participant);
+                //Already shut down after a decision, this only stops participants of a failed or abandoned vote
+                participant.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Decides a batch of independent proposals in one vote, sharing the connections and rounds between them
+     * @param proposals The options for each proposal, which can't contain commas or spaces
+     * @return The option chosen for each proposal, in the same order
+     */
+    CompletableFuture<List<String>> proposeBatch(List<? extends Collection<String>> proposals) {
+        List<String> options = new ArrayList<>();
+        for (Collection<String> proposal : proposals) {
+            options.add(String.join(",", proposal));
+        }
+        Ballot ballot = new Ballot(options);
+        Coordinator.votingMode mode = Coordinator.votingMode.valueOf(System.getProperty("consensus.votingMode", "mesh").toUpperCase());
+        return propose(options, mode, true).thenApply(ballot::decode);
+    }
+
+    /**
+     * Abandons any votes still in flight, their futures complete exceptionally
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Coordinator coordinator : coordinators) {
+            coordinator.close();
+        }
+        for (Participant participant : members) {
+            participant.shutdown();
+        }
+    }
+}
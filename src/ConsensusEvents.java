@@ -0,0 +1,170 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for tracing a decision from JOIN to the final OUTCOME. Recorded alongside the JVM's own
+ * events when the process is run with -XX:StartFlightRecording:filename=consensus.jfr, then viewed in JDK Mission Control
+ * or with "jfr print --categories Consensus consensus.jfr". When no recording is running each event costs an
+ * isEnabled() check on its EventType and nothing is allocated, so events are only created through the methods here.
+ * @author Oscar van Leusen
+ */
+final class ConsensusEvents {
+    private ConsensusEvents() {
+    }
+
+    @Category("Consensus")
+    abstract static class ProtocolEvent extends Event {
+        @Label("Port")
+        @Description("Port of the participant the event happened on, or that the Coordinator was talking to")
+        int port;
+
+        @Label("Epoch")
+        @Description("Number of RESTARTs before this event")
+        int epoch;
+
+        @Label("Round")
+        @Description("Round within the epoch, 0 for the Coordinator's JOIN")
+        int round;
+    }
+
+    @Name("consensus.ControlMessage")
+    @Label("Control Message Received")
+    @Description("JOIN received by the Coordinator, or DETAILS, VOTE_OPTIONS or RESTART received by a participant")
+    static class ControlMessage extends ProtocolEvent {
+        @Label("Message")
+        String message;
+    }
+
+    @Name("consensus.MeshEstablished")
+    @Label("Mesh Established")
+    @Description("Time taken to connect to every other participant and enable timeouts")
+    static class MeshEstablished extends ProtocolEvent {
+        @Label("Peers")
+        int peers;
+
+        @Label("Multicast")
+        boolean multicast;
+    }
+
+    @Name("consensus.VoteRound")
+    @Label("Vote Round")
+    @Description("One round of sending votes to peers and checking for a winner")
+    static class VoteRound extends ProtocolEvent {
+        @Label("Votes Received")
+        int votesReceived;
+
+        @Label("Votes Required")
+        int votesRequired;
+    }
+
+    @Name("consensus.Revote")
+    @Label("Revote")
+    static class Revote extends ProtocolEvent {
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("consensus.OutcomeSent")
+    @Label("Outcome Sent")
+    static class OutcomeSent extends ProtocolEvent {
+        @Label("Outcome")
+        @Description("The majority option, or null if there was a tie or no majority")
+        String outcome;
+
+        @Label("Votes")
+        int votes;
+    }
+
+    @Name("consensus.Restart")
+    @Label("Restart Sent")
+    @Description("RESTART sent by the Coordinator after a tie or no majority, port is the Coordinator's own")
+    static class Restart extends ProtocolEvent {
+        @Label("Participants")
+        @Description("Functional participants voting in the new epoch")
+        int participants;
+    }
+
+    private static final EventType CONTROL_MESSAGE = EventType.getEventType(ControlMessage.class);
+    private static final EventType MESH_ESTABLISHED = EventType.getEventType(MeshEstablished.class);
+    private static final EventType VOTE_ROUND = EventType.getEventType(VoteRound.class);
+    private static final EventType REVOTE = EventType.getEventType(Revote.class);
+    private static final EventType OUTCOME_SENT = EventType.getEventType(OutcomeSent.class);
+    private static final EventType RESTART = EventType.getEventType(Restart.class);
+
+    static void controlMessage(String message, int port, int epoch, int round) {
+        if (CONTROL_MESSAGE.isEnabled()) {
+            ControlMessage event = new ControlMessage();
+            event.message = message;
+            event.port = port;
+            event.epoch = epoch;
+            event.round = round;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return A MeshEstablished event that has begun, or null if it isn't being recorded
+     */
+    static MeshEstablished meshEstablished(int port) {
+        if (!MESH_ESTABLISHED.isEnabled()) {
+            return null;
+        }
+        MeshEstablished event = new MeshEstablished();
+        event.port = port;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return A VoteRound event that has begun, or null if it isn't being recorded
+     */
+    static VoteRound voteRound(int port, int epoch, int round) {
+        if (!VOTE_ROUND.isEnabled()) {
+            return null;
+        }
+        VoteRound event = new VoteRound();
+        event.port = port;
+        event.epoch = epoch;
+        event.round = round;
+        event.begin();
+        return event;
+    }
+
+    static void revote(Participant.revoteReason reason, int port, int epoch, int round) {
+        if (REVOTE.isEnabled()) {
+            Revote event = new Revote();
+            event.reason = reason.name();
+            event.port = port;
+            event.epoch = epoch;
+            event.round = round;
+            event.commit();
+        }
+    }
+
+    static void outcomeSent(String outcome, int votes, int port, int epoch, int round) {
+        if (OUTCOME_SENT.isEnabled()) {
+            OutcomeSent event = new OutcomeSent();
+            event.outcome = outcome;
+            event.votes = votes;
+            event.port = port;
+            event.epoch = epoch;
+            event.round = round;
+            event.commit();
+        }
+    }
+
+    static void restart(int participants, int port, int epoch, int round) {
+        if (RESTART.isEnabled()) {
+            Restart event = new Restart();
+            event.participants = participants;
+            event.port = port;
+            event.epoch = epoch;
+            event.round = round;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Single-threaded discrete-event simulation of the peer-to-peer (MESH) voting protocol, for profiling and
+ * regression-testing how many rounds a decision takes across many interleavings, much faster than real time.
+ * Every message is an event on one simulated clock, so a given seed or trace always produces the same interleaving.
+ * <p>
+ * SimParticipant keeps its votes in the same RoundState as Participant, so the PROPAGATE/INCOMPLETE/FAILURE revotes,
+ * missing-vote timeouts, when OUTCOME is sent, the tally and RESTART are the real code. Only the sending of each round
+ * and the waits between them are modelled here, after Participant.run(). Only a fixed membership voting between plain options with a single Coordinator
+ * is modelled: STAR mode, observers, MEMBERS deltas, standby failover and ballots are not, and replay refuses a trace
+ * that uses any of them. PING and HEARTBEAT keepalives are skipped on replay, so only a participant that exits (rather
+ * than hangs) can be simulated failing.
+ * <pre>
+ * java ConsensusSimulator replay &lt;timeout&gt; &lt;trace file&gt;...
+ * java ConsensusSimulator generate &lt;participants&gt; &lt;runs&gt; &lt;seed&gt; &lt;mean latency ms&gt; &lt;failures&gt; &lt;option1&gt; &lt;option2&gt; ...
+ * </pre>
+ * replay reads the MessageTrace files of one run (coordinator and participants), and re-runs it with the traced votes,
+ * start times, failures and per-link delivery times, then prints the simulated rounds against the traced ones, exiting
+ * with status 1 if the simulated decision differs from a traced one.
+ * generate runs the given number of random schedules (votes, latencies and start times drawn from the seed), with up to
+ * one participant per run failing during or after step 4, and prints the distribution of rounds per decision.
+ * @author Oscar van Leusen
+ */
+class ConsensusSimulator {
+    //Matches the sleeps in Participant.run() and Coordinator.checkOutcomes(), in microseconds
+    private static final long ROUND_ONE_WAIT = 100_000;
+    private static final long ROUND_WAIT = 500_000;
+    private static final long RESTART_WAIT = 2_000_000;
+    //Messages only sent by the features the simulation leaves out (see the class comment)
+    private static final Set<String> UNMODELLED = new HashSet<>(Arrays.asList("STAR", "OBSERVE", "MEMBERS", "STANDBY", "REJOIN", "BALLOT"));
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Map<Integer, SimParticipant> participants = new TreeMap<>();
+    private final Random random;
+    private final Latency latency;
+    private final long timeout; //Microseconds
+    private long now = 0;
+    private long sequence = 0; //Breaks ties between events at the same time, in the order they were scheduled
+
+    //Coordinator state
+    private int parts;
+    private int coordinatorEpoch = 0;
+    private final Map<Integer, String> outcomes = new HashMap<>();
+    private final Map<Integer, Integer> roundsPerEpoch = new TreeMap<>(); //Highest round an OUTCOME was sent in
+    private String decision;
+    private long decisionTime;
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Delivery delay, in microseconds, for the next message from one port to another
+     */
+    interface Latency {
+        long next(int from, int to);
+    }
+
+    private final class SimParticipant {
+        final int port;
+        final List<Integer> peers = new ArrayList<>(); //Lower ports first, the order Participant sends in
+        final Set<Integer> connected = new HashSet<>();
+        final RoundState rounds = new RoundState(); //The same votes, revote flags and rules as Participant
+        final Map<Integer, String> tracedVotes; //Epoch to vote, when replaying
+        List<String> majorityOptions = new ArrayList<>();
+        String chosenVote;
+        int epoch = 0;
+        int round = 1;
+        int generation = 0; //Incremented when the run loop blocks, so its pending round events are dropped
+        boolean finished, crashed;
+        boolean failDuring, failAfter;
+
+        SimParticipant(int port, Map<Integer, String> tracedVotes) {
+            this.port = port;
+            this.tracedVotes = tracedVotes;
+        }
+
+        void roundStart(int generation) {
+            if (crashed || finished || generation != this.generation) {
+                return;
+            }
+            if (round == 1) {
+                String vote = "VOTE " + epoch + " 1 " + port + " " + chosenVote;
+                for (int peer : peers) {
+                    send(port, peer, vote);
+                    if (failDuring) {
+                        crash(); //Failure condition 1, after sharing its vote with one participant
+                        return;
+                    }
+                }
+                rounds.votesShared(round);
+                schedule(now + ROUND_ONE_WAIT, () -> roundEnd(generation));
+            } else if (!rounds.majorityVoteSent) {
+                String combined = rounds.votes.appendTo(new StringBuilder("VOTE ").append(epoch).append(" ").append(round).append(" ")).toString();
+                for (int peer : peers) {
+                    if (connected.contains(peer)) {
+                        send(port, peer, combined);
+                    }
+                }
+                rounds.votesShared(round);
+                schedule(now + ROUND_WAIT, () -> roundEnd(generation));
+            }
+        }
+
+        void roundEnd(int generation) {
+            if (crashed || finished || generation != this.generation) {
+                return;
+            }
+            establishWinner();
+            if (!rounds.majorityVoteSent) {
+                round++;
+                schedule(now, () -> roundStart(generation));
+            }
+        }
+
+        void receiveVotes(String message) {
+            if (crashed || finished) {
+                return;
+            }
+            String[] tokens = message.trim().split(" ");
+            int messageEpoch = Integer.parseInt(tokens[1]);
+            int messageRound = Integer.parseInt(tokens[2]);
+            if (messageEpoch < epoch) {
+                return;
+            } else if (messageEpoch > epoch) {
+                for (int i = 3; i + 1 < tokens.length; i += 2) {
+                    rounds.nextEpochVotes.put(Integer.parseInt(tokens[i]), tokens[i + 1]);
+                }
+                return;
+            }
+            for (int i = 3; i + 1 < tokens.length; i += 2) {
+                if (rounds.voteReceived(Integer.parseInt(tokens[i]), tokens[i + 1], messageRound, round)) {
+                    rounds.revote(); //PROPAGATE
+                }
+            }
+            establishWinner();
+        }
+
+        void connectionClosed(int peer) {
+            if (crashed || finished || !connected.remove(peer)) {
+                return;
+            }
+            if (!rounds.majorityVoteSent) {
+                rounds.peerFailed(); //FAILURE
+            }
+        }
+
+        void establishWinner() {
+            if (rounds.votesMissing(round)) {
+                rounds.giveUpMissingVotes(peers, now, timeout);
+                rounds.revote(); //INCOMPLETE
+            }
+
+            if (rounds.readyForOutcome(round, connected.isEmpty())) {
+                if (failAfter) {
+                    crash(); //Failure condition 2
+                    return;
+                }
+                RoundState.Tally tally = rounds.tally();
+                majorityOptions = new ArrayList<>(tally.majorityOptions);
+                rounds.majorityVoteSent = true;
+                generation++;
+                if (tally.winner != null) {
+                    finished = true;
+                    sendOutcome(port, epoch, round, tally.winner);
+                } else {
+                    sendOutcome(port, epoch, round, "null");
+                }
+            }
+        }
+
+        void restart(int newEpoch) {
+            if (crashed || finished) {
+                return;
+            }
+            Collections.sort(majorityOptions); //HashMap order isn't part of the protocol, sorted so runs repeat
+            chosenVote = tracedVotes.getOrDefault(newEpoch, majorityOptions.get(random.nextInt(majorityOptions.size())));
+            majorityOptions.clear();
+            epoch = newEpoch;
+            List<Integer> members = new ArrayList<>(peers);
+            members.add(port);
+            rounds.restart(members, port, chosenVote, connected.size());
+            //A MESH RESTART starts the new epoch in round 2, as Participant does
+            round = 2;
+            int current = generation;
+            schedule(now, () -> roundStart(current));
+        }
+
+        void crash() {
+            crashed = true;
+            for (int peer : connected) {
+                int closedPort = port;
+                schedule(now + latency.next(port, peer), () -> participants.get(peer).connectionClosed(closedPort));
+            }
+            schedule(now + latency.next(port, 0), () -> participantFailed(port));
+        }
+    }
+
+    private ConsensusSimulator(long seed, Latency latency, long timeout) {
+        this.random = new Random(seed);
+        this.latency = latency;
+        this.timeout = timeout;
+    }
+
+    private void schedule(long time, Runnable action) {
+        events.add(new Event(time, sequence++, action));
+    }
+
+    //Per-link delivery times, so messages on one connection arrive in the order sent, as over TCP
+    private final Map<Long, Long> lastDelivery = new HashMap<>();
+
+    private long deliveryTime(int from, int to) {
+        long link = ((long) from << 32) | (to & 0xffffffffL);
+        long delivery = Math.max(now + latency.next(from, to), lastDelivery.getOrDefault(link, 0L));
+        lastDelivery.put(link, delivery);
+        return delivery;
+    }
+
+    private void send(int from, int to, String message) {
+        schedule(deliveryTime(from, to), () -> participants.get(to).receiveVotes(message));
+    }
+
+    private void sendOutcome(int from, int epoch, int round, String outcome) {
+        schedule(deliveryTime(from, 0), () -> outcomeReceived(from, epoch, round, outcome));
+    }
+
+    private void outcomeReceived(int port, int epoch, int round, String outcome) {
+        if (epoch != coordinatorEpoch || decision != null) {
+            return;
+        }
+        outcomes.put(port, outcome);
+        roundsPerEpoch.merge(epoch, round, Math::max);
+        checkOutcomes();
+    }
+
+    private void participantFailed(int port) {
+        if (!outcomes.containsKey(port)) {
+            parts--;
+        }
+        checkOutcomes();
+    }
+
+    private void checkOutcomes() {
+        if (outcomes.size() < parts || parts == 0 || decision != null) {
+            return;
+        }
+        Set<String> distinct = new HashSet<>(outcomes.values());
+        if (distinct.size() != 1) {
+            return; //Participants disagree, the Coordinator waits forever
+        }
+        String outcome = distinct.iterator().next();
+        if (!outcome.equals("null")) {
+            decision = outcome;
+            decisionTime = now;
+            return;
+        }
+        schedule(now + RESTART_WAIT, () -> {
+            coordinatorEpoch++;
+            outcomes.clear();
+            for (SimParticipant participant : participants.values()) {
+                int epoch = coordinatorEpoch;
+                schedule(deliveryTime(0, participant.port), () -> participant.restart(epoch));
+            }
+        });
+    }
+
+    /**
+     * Adds a participant that starts voting at the given time with the given vote for each epoch (only epoch 0 is
+     * required, later votes are drawn at random among the tied options if missing)
+     */
+    private SimParticipant addParticipant(int port, long startTime, Map<Integer, String> votes) {
+        SimParticipant participant = new SimParticipant(port, votes);
+        participant.chosenVote = votes.get(0);
+        participant.rounds.votes.put(port, participant.chosenVote);
+        participants.put(port, participant);
+        schedule(startTime, () -> participant.roundStart(0));
+        return participant;
+    }
+
+    /**
+     * Connects every participant to every other, once all have been added
+     */
+    private void connectAll() {
+        parts = participants.size();
+        for (SimParticipant participant : participants.values()) {
+            for (int peer : participants.keySet()) {
+                if (peer != participant.port) {
+                    participant.peers.add(peer);
+                    participant.connected.add(peer);
+                }
+            }
+            participant.rounds.votesRequired = participant.peers.size() + 1;
+        }
+    }
+
+    /**
+     * Runs events until a decision is reached, every participant has stopped, or simulated time passes the limit
+     */
+    private void run(long limit) {
+        Event event;
+        while (decision == null && (event = events.poll()) != null && event.time <= limit) {
+            now = event.time;
+            event.action.run();
+        }
+    }
+
+    private int totalRounds() {
+        return roundsPerEpoch.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Re-runs a traced run, using its votes, start times, failures and delivery times
+     * @return false if the simulation decided differently from the traced run
+     */
+    private static boolean replay(long timeout, List<MessageTrace.Record> records) {
+        records.sort(Comparator.comparingLong(r -> r.time));
+        int coordinatorPort = 0;
+        Map<Integer, Long> startTimes = new TreeMap<>();
+        Map<Integer, Map<Integer, String>> votes = new TreeMap<>();
+        Map<Integer, Integer> votesSent = new HashMap<>();
+        Set<Integer> outcomeSent = new HashSet<>();
+        Map<Integer, Integer> tracedRounds = new TreeMap<>();
+        String tracedDecision = null;
+        Map<Long, Deque<MessageTrace.Record>> inFlight = new HashMap<>();
+        Map<Long, Deque<Long>> linkLatencies = new HashMap<>();
+        long totalLatency = 0;
+        int latencyCount = 0;
+
+        for (MessageTrace.Record record : records) {
+            String[] tokens = record.message.trim().split(" ");
+            if (UNMODELLED.contains(tokens[0])) {
+                System.out.println("Trace uses " + tokens[0] + ", which ConsensusSimulator doesn't model, so can't be replayed");
+                return true;
+            } else if (tokens[0].equals("PING") || tokens[0].equals("PONG") || tokens[0].equals("HEARTBEAT")) {
+                continue; //Not simulated, their delivery times would otherwise be used for the wrong messages
+            }
+            if (record.direction == MessageTrace.SENT) {
+                if (tokens[0].equals("JOIN")) {
+                    coordinatorPort = record.peerPort;
+                } else if (tokens[0].equals("VOTE") && record.peerPort != coordinatorPort) {
+                    startTimes.putIfAbsent(record.localPort, record.time);
+                    if (record.epoch == 0 && record.round == 1) {
+                        votesSent.merge(record.localPort, 1, Integer::sum);
+                    }
+                    for (int i = 3; i + 1 < tokens.length; i += 2) {
+                        if (Integer.parseInt(tokens[i]) == record.localPort) {
+                            votes.computeIfAbsent(record.localPort, k -> new HashMap<>()).putIfAbsent(record.epoch, tokens[i + 1]);
+                        }
+                    }
+                } else if (tokens[0].equals("OUTCOME")) {
+                    outcomeSent.add(record.localPort);
+                    tracedRounds.merge(record.epoch, record.round, Math::max);
+                } else if (tokens[0].equals("DECIDED")) {
+                    tracedDecision = tokens[1];
+                }
+                long link = ((long) record.localPort << 32) | (record.peerPort & 0xffffffffL);
+                inFlight.computeIfAbsent(link, k -> new ArrayDeque<>()).add(record);
+            } else {
+                long link = ((long) record.peerPort << 32) | (record.localPort & 0xffffffffL);
+                Deque<MessageTrace.Record> sent = inFlight.get(link);
+                if (sent != null) {
+                    for (Iterator<MessageTrace.Record> it = sent.iterator(); it.hasNext(); ) {
+                        MessageTrace.Record match = it.next();
+                        if (match.message.equals(record.message)) {
+                            it.remove();
+                            long delay = Math.max(0, record.time - match.time);
+                            //The Coordinator is port 0 in the simulation
+                            int from = match.localPort == coordinatorPort ? 0 : match.localPort;
+                            int to = record.localPort == coordinatorPort ? 0 : record.localPort;
+                            linkLatencies.computeIfAbsent(((long) from << 32) | (to & 0xffffffffL), k -> new ArrayDeque<>()).add(delay);
+                            totalLatency += delay;
+                            latencyCount++;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        if (startTimes.isEmpty()) {
+            System.out.println("No participant votes in trace");
+            return true;
+        }
+
+        long meanLatency = latencyCount == 0 ? 100 : totalLatency / latencyCount;
+        ConsensusSimulator simulator = new ConsensusSimulator(0, (from, to) -> {
+            Deque<Long> traced = linkLatencies.get(((long) from << 32) | (to & 0xffffffffL));
+            return traced == null || traced.isEmpty() ? meanLatency : traced.poll();
+        }, timeout * 1000);
+        long firstStart = Collections.min(startTimes.values());
+        for (Map.Entry<Integer, Long> start : startTimes.entrySet()) {
+            int port = start.getKey();
+            SimParticipant participant = simulator.addParticipant(port, start.getValue() - firstStart, votes.get(port));
+            if (!outcomeSent.contains(port)) {
+                //Failed, during step 4 if it only sent its round 1 vote to one participant
+                if (votesSent.getOrDefault(port, 0) <= 1 && startTimes.size() > 2) {
+                    participant.failDuring = true;
+                } else {
+                    participant.failAfter = true;
+                }
+            }
+        }
+        simulator.connectAll();
+
+        long wallStart = System.nanoTime();
+        simulator.run(Long.MAX_VALUE);
+        long wallTime = (System.nanoTime() - wallStart) / 1000;
+
+        System.out.println("Traced:    decision " + tracedDecision + ", rounds per epoch " + tracedRounds);
+        System.out.println("Simulated: decision " + simulator.decision + ", rounds per epoch " + simulator.roundsPerEpoch
+                + ", " + simulator.decisionTime / 1000 + "ms simulated in " + wallTime / 1000.0 + "ms");
+        if (tracedDecision != null && !tracedDecision.equals(simulator.decision)) {
+            System.out.println("Simulated decision doesn't match the trace");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs random schedules and prints how many rounds each took to decide
+     */
+    private static void generate(int participantCount, int runs, long seed, double meanLatencyMs, int failures, List<String> options) {
+        Map<Integer, Integer> roundCounts = new TreeMap<>();
+        Map<Integer, Integer> restartCounts = new TreeMap<>();
+        List<Long> decisionTimes = new ArrayList<>();
+        int undecided = 0;
+        long wallStart = System.nanoTime();
+
+        for (int run = 0; run < runs; run++) {
+            Random schedule = new Random(seed + run);
+            ConsensusSimulator simulator = new ConsensusSimulator(seed + run, (from, to) ->
+                    50 + (long) (-Math.log(1 - schedule.nextDouble()) * meanLatencyMs * 1000), 3_000_000);
+            List<SimParticipant> added = new ArrayList<>();
+            for (int i = 1; i <= participantCount; i++) {
+                Map<Integer, String> votes = new HashMap<>();
+                votes.put(0, options.get(schedule.nextInt(options.size())));
+                added.add(simulator.addParticipant(10000 + i, schedule.nextInt(50_000), votes));
+            }
+            for (int i = 0; i < failures && i < added.size(); i++) {
+                if (schedule.nextBoolean()) {
+                    added.get(schedule.nextInt(added.size())).failDuring = true;
+                } else {
+                    added.get(schedule.nextInt(added.size())).failAfter = true;
+                }
+            }
+            simulator.connectAll();
+            simulator.run(600_000_000L);
+
+            if (simulator.decision == null) {
+                undecided++;
+            } else {
+                roundCounts.merge(simulator.totalRounds(), 1, Integer::sum);
+                restartCounts.merge(simulator.coordinatorEpoch, 1, Integer::sum);
+                decisionTimes.add(simulator.decisionTime);
+            }
+        }
+        long wallTime = (System.nanoTime() - wallStart) / 1_000_000;
+
+        System.out.println(runs + " runs of " + participantCount + " participants in " + wallTime + "ms (" + undecided + " undecided)");
+        System.out.println("Rounds to decide (summed over epochs): " + roundCounts);
+        System.out.println("Restarts: " + restartCounts);
+        if (!decisionTimes.isEmpty()) {
+            Collections.sort(decisionTimes);
+            System.out.println("Simulated decision time: p50 " + decisionTimes.get(decisionTimes.size() / 2) / 1000
+                    + "ms, p99 " + decisionTimes.get(decisionTimes.size() * 99 / 100) / 1000
+                    + "ms, max " + decisionTimes.get(decisionTimes.size() - 1) / 1000 + "ms");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("replay")) {
+            List<MessageTrace.Record> records = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                records.addAll(MessageTrace.read(Paths.get(args[i])));
+            }
+            if (!replay(Long.parseLong(args[1]), records)) {
+                System.exit(1);
+            }
+        } else if (args.length >= 8 && args[0].equals("generate")) {
+            generate(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]),
+                    Double.parseDouble(args[4]), Integer.parseInt(args[5]), Arrays.asList(args).subList(6, args.length));
+        } else {
+            System.err.println("Usage: ConsensusSimulator replay <timeout> <trace file>...");
+            System.err.println("       ConsensusSimulator generate <participants> <runs> <seed> <mean latency ms> <failures> <option1> <option2> ...");
+        }
+    }
+}
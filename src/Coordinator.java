@@ -1,12 +1,11 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static java.lang.Thread.sleep;
 
@@ -14,38 +13,213 @@ import static java.lang.Thread.sleep;
  * @author Oscar van Leusen
  */
 public class Coordinator {
+
+    //MESH: participants share votes peer-to-peer and send OUTCOME. STAR: participants VOTE straight to the Coordinator,
+    //which tallies them, using O(N) messages at the cost of every vote passing through the Coordinator
+    enum votingMode { MESH, STAR }
+
+    //Whether to disable Nagle's algorithm on protocol sockets, messages are buffered and flushed once per round/step
+    private static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("consensus.tcpNoDelay", "true"));
+    //Time in ms after which voting starts with whoever has joined (once at least the quorum has), 0 to wait for every participant
+    private static final long JOIN_DEADLINE = Long.getLong("consensus.joinDeadline", 0);
+    //Time in ms a standby that has taken over waits for participants to reconnect, before treating the rest as failed
+    private static final long FAILOVER_TIMEOUT = Long.getLong("consensus.failoverTimeout", 3000);
+    //Time in ms between HEARTBEATs sent to participants and the standby, so a Coordinator that hangs rather than closing
+    //its connections is noticed. A Coordinator silent for HEARTBEAT_TIMEOUT is treated as lost, 0 disables both.
+    static final long HEARTBEAT_INTERVAL = Long.getLong("consensus.heartbeatInterval", 1000);
+    static final int HEARTBEAT_TIMEOUT = HEARTBEAT_INTERVAL > 0 ? Integer.getInteger("consensus.heartbeatTimeout", 5000) : 0;
+    //Participants keep their peer connections and held votes across a RESTART, so a MESH epoch after the first starts
+    //straight away with combined votes in round 2, rather than each participant's single vote in round 1
+    private static final int MESH_RESTART_ROUND = 2;
+
     private final HashMap<Thread, Socket> participantConnections = new HashMap<>();
     private List<Integer> participantPorts = new ArrayList<>();
     private int participantsJoined = 0;
+    private int membershipVersion = 0; //Incremented on every change to participantPorts, tags DETAILS and MEMBERS deltas
 
     private boolean outcomePrinted = false;
     private ServerSocket serverSocket;
-    private int parts; //Number of participants to expect to JOIN (and expect an OUTCOME from)
-    private final Set<String> options;
-    private List<Integer> outcomesFrom = new ArrayList<>(); //Stores which Participants we've gotten the outcomes from
+    private int parts; //Number of participants to expect to JOIN, then the number still connected and expected to vote
+    private int quorum; //Fewest participants voting can start with once the join deadline has passed
+    private boolean deadlinePassed = false;
+    private volatile boolean votingStarted = false; //Participants joining after this only observe the decision
+    private final List<String> options;
+    private Ballot ballot; //Set if the options are a batch of proposals, see Ballot
+    private votingMode mode;
+    //Guards starVotes, outcomes and outcomesFrom in either mode. Always taken before participantConnections, never after
+    private final Object tallyLock = new Object();
+    private final Map<Integer, String> starVotes = new HashMap<>(); //Votes sent to the Coordinator in STAR mode
+    private List<Integer> outcomesFrom = new ArrayList<>(); //Participants we've gotten the outcome (or STAR vote) from this epoch, including any that have since failed
     private List<String> outcomes = new ArrayList<>();
+    private volatile int restartEpoch = 0; //Incremented on every RESTART, OUTCOMEs tagged with an older epoch are discarded
+    private final Map<Integer, Integer> roundsPerEpoch = new TreeMap<>(); //Highest round an OUTCOME (or STAR vote) was sent in, per epoch
+    private final CompletableFuture<String> outcome = new CompletableFuture<>(); //Completed with the overall vote
+    private String lastRestart; //Resent to participants that fail over to the standby having missed it
+
+    //Hot standby: the primary sends every state change to the standby, which takes over if the primary is lost
+    private Socket primarySocket; //Only set on a standby
+    private final CompletableFuture<Void> promoted = new CompletableFuture<>(); //Completed straight away on a primary
+    private CoordinatorConnHandler standby; //Connection from the standby, on the primary
+    private int standbyPort;
+    private final Set<Integer> rejoined = new HashSet<>(); //Participants that have reconnected to this standby
+    private FaultInjector faults; //Only set if -Dconsensus.faults is given, applied to messages sent to participants
+
+    /**
+     * Creates a Coordinator for a single decision, call start() to begin accepting participants
+     * @param listenPort Port to listen for participants on, or 0 for any free port (see getPort())
+     * @param parts Number of participants to expect to JOIN
+     * @param options Options the participants vote between
+     * @param mode Whether votes are shared peer-to-peer or collected by the Coordinator
+     * @param isBallot Whether each option is a proposal of a Ballot (a comma separated list of its options) rather than an option
+     * @throws IOException Thrown if the port can't be listened on
+     */
+    Coordinator(int listenPort, int parts, Collection<String> options, votingMode mode, boolean isBallot) throws IOException {
+        this.parts = parts;
+        this.quorum = Math.min(parts, Integer.getInteger("consensus.quorum", parts));
+        this.ballot = isBallot ? new Ballot(options) : null;
+        //Duplicate options are dropped, but a ballot can ask the same question twice and its votes are packed by position
+        this.options = new ArrayList<>(ballot == null ? new LinkedHashSet<>(options) : options);
+        this.mode = mode;
+        serverSocket = new ServerSocket(listenPort);
+        faults = FaultInjector.fromProperty(getPort());
+        promoted.complete(null);
+        System.out.println("COORD: Initialised Coordinator listening on " + getPort() + ", expecting " + parts + " participants, options: " + this.options.toString() + ", voting mode: " + mode);
+    }
+
+    /**
+     * Creates a hot-standby Coordinator, which copies the membership, options and outcomes of the primary Coordinator
+     * and takes over if the primary is lost. Participants are told its port by the primary, and reconnect to it.
+     * @param listenPort Port participants reconnect to, or 0 for any free port
+     * @param primaryPort Port of the primary Coordinator
+     * @throws IOException Thrown if the port can't be listened on or the primary can't be reached
+     */
+    Coordinator(int listenPort, int primaryPort) throws IOException {
+        this.options = new ArrayList<>();
+        this.mode = votingMode.MESH;
+        serverSocket = new ServerSocket(listenPort);
+        faults = FaultInjector.fromProperty(getPort());
+        try {
+            primarySocket = new Socket("localhost", primaryPort);
+            primarySocket.setTcpNoDelay(TCP_NO_DELAY);
+            MessageWriter primaryOut = new MessageWriter(primarySocket.getOutputStream());
+            primaryOut.println("STANDBY " + getPort());
+            primaryOut.flush();
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        System.out.println("COORD: Initialised standby Coordinator listening on " + getPort() + " for primary at " + primaryPort);
+    }
 
-    private Coordinator(String[] args) throws InsufficientArgumentsException {
+    /**
+     * Creates a Coordinator for a vote between options, rather than a Ballot
+     */
+    Coordinator(int listenPort, int parts, Collection<String> options, votingMode mode) throws IOException {
+        this(listenPort, parts, options, mode, false);
+    }
+
+    /**
+     * Creates a Coordinator using the voting mode given by -Dconsensus.votingMode (mesh by default), deciding a Ballot
+     * if -Dconsensus.ballot=true
+     */
+    Coordinator(int listenPort, int parts, Collection<String> options) throws IOException {
+        this(listenPort, parts, options, votingMode.valueOf(System.getProperty("consensus.votingMode", "mesh").toUpperCase()),
+                Boolean.getBoolean("consensus.ballot"));
+    }
+
+    private static Coordinator fromArgs(String[] args) throws InsufficientArgumentsException, IOException {
+        //A standby only needs its own port, everything else comes from the primary
+        String primaryPort = System.getProperty("consensus.standbyOf");
+        if (primaryPort != null) {
+            if (args.length < 1) {
+                throw new InsufficientArgumentsException(args);
+            }
+            return new Coordinator(Integer.parseInt(args[0]), Integer.parseInt(primaryPort));
+        }
         //Bare-minimum number of arguments is 4, <port> <parts> <option1> <option2>
         if (args.length < 4) {
             throw new InsufficientArgumentsException(args);
         }
-        int listenPort = Integer.parseInt(args[0]);
-        parts = Integer.parseInt(args[1]);
-        options = new HashSet<>();
-        options.addAll(Arrays.asList(args).subList(2, args.length));
+        return new Coordinator(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Arrays.asList(args).subList(2, args.length));
+    }
 
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts participant connections on a new thread, and returns straight away
+     * @return The overall vote once all participants agree, completed exceptionally if they all fail or close() is called first
+     */
+    CompletableFuture<String> start() {
+        Thread acceptThread = new Thread(() -> {
+            try {
+                awaitConnections();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("COORD: Unable to connect to participants");
+                    outcome.completeExceptionally(e);
+                }
+            }
+        }, "coordinator-" + getPort());
+        acceptThread.start();
+
+        if (HEARTBEAT_INTERVAL > 0) {
+            Thread heartbeatThread = new Thread(this::sendHeartbeats, "heartbeat-" + getPort());
+            heartbeatThread.setDaemon(true);
+            heartbeatThread.start();
+        }
+
+        if (primarySocket != null) {
+            Thread followThread = new Thread(this::followPrimary, "standby-" + getPort());
+            followThread.start();
+        } else if (JOIN_DEADLINE > 0) {
+            Thread deadlineThread = new Thread(() -> {
+                try {
+                    sleep(JOIN_DEADLINE);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (participantConnections) {
+                    deadlinePassed = true;
+                    checkStart();
+                }
+            }, "join-deadline-" + getPort());
+            deadlineThread.setDaemon(true);
+            deadlineThread.start();
+        }
+        return outcome;
+    }
+
+    CompletableFuture<String> outcome() {
+        return outcome;
+    }
+
+    /**
+     * Stops accepting participants and closes every participant connection, failing the outcome if not yet decided
+     */
+    void close() {
+        outcome.completeExceptionally(new IllegalStateException("Coordinator closed before an overall vote was reached"));
+        promoted.complete(null); //Releases connection threads on a standby so they can close
         try {
-            serverSocket = new ServerSocket(listenPort);
-            System.out.println("COORD: Initialised Coordinator listening on " + listenPort + ", expecting " + parts + " participants, options: " + options.toString());
+            if (primarySocket != null) {
+                primarySocket.close();
+            }
+            serverSocket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        synchronized (participantConnections) {
+            closeAllConnections();
+        }
     }
 
+    /**
+     * Accepts connections until the outcome is decided, participants connecting after voting starts become observers
+     */
     private void awaitConnections() throws IOException {
         Socket socket;
-        while (participantConnections.size() < parts) {
+        while (!outcome.isDone()) {
             socket = serverSocket.accept();
             socket.setSoLinger(true,0);
             System.out.println("COORD: A participant has connected to the coordinator");
@@ -57,101 +231,556 @@ public class Coordinator {
             }
             thread.start();
         }
-        System.out.println("COORD: All participants have made a connection to the coordinator");
+    }
+
+    /**
+     * Applies the primary's state changes on a standby until the primary is lost, then takes over
+     */
+    private void followPrimary() {
+        try {
+            primarySocket.setSoTimeout(HEARTBEAT_TIMEOUT);
+            MessageReader in = new MessageReader(primarySocket.getInputStream());
+            while (!outcome.isDone() && in.next()) {
+                synchronized (tallyLock) {
+                    synchronized (participantConnections) {
+                        applyPrimaryState(in);
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("COORD: No heartbeat from the primary Coordinator for " + HEARTBEAT_TIMEOUT + "ms");
+        } catch (IOException e) {
+            //Handled as the primary being lost
+        }
+        if (!outcome.isDone()) {
+            promote();
+        }
+    }
+
+    private void applyPrimaryState(MessageReader in) throws IOException {
+        switch (in.token(0)) {
+            case "STATE": //STATE <parts> <epoch> <started> <mode> <ballot> [<option>]
+                parts = in.intToken(1);
+                quorum = parts;
+                restartEpoch = in.intToken(2);
+                votingStarted = in.intToken(3) == 1;
+                mode = votingMode.valueOf(in.token(4));
+                for (int i = 6; i < in.tokenCount(); i++) {
+                    options.add(in.token(i));
+                }
+                ballot = in.intToken(5) == 1 ? new Ballot(options) : null;
+                System.out.println("COORD: Standby following primary, expecting " + parts + " participants, options: " + options + ", voting mode: " + mode);
+                break;
+            case "MEMBER": //MEMBER <port> <membership version>
+                participantPorts.add(in.intToken(1));
+                participantsJoined++;
+                membershipVersion = in.intToken(2);
+                break;
+            case "LEFT": //LEFT <port> <parts> <membership version>
+                participantPorts.remove((Integer) in.intToken(1));
+                participantsJoined--;
+                parts = in.intToken(2);
+                membershipVersion = in.intToken(3);
+                break;
+            case "STARTED": //STARTED <parts>
+                votingStarted = true;
+                parts = in.intToken(1);
+                break;
+            case "RECEIVED": //RECEIVED <port> <outcome or STAR vote> <round>
+                outcomesFrom.add(in.intToken(1));
+                roundsPerEpoch.merge(restartEpoch, in.intToken(3), Math::max);
+                if (mode == votingMode.STAR) {
+                    starVotes.put(in.intToken(1), in.token(2));
+                } else {
+                    outcomes.add(in.token(2));
+                }
+                break;
+            case "RESTART":
+                restartEpoch = in.intToken(1);
+                lastRestart = in.toString();
+                outcomes.clear();
+                outcomesFrom.clear();
+                starVotes.clear();
+                break;
+            case "DECIDED":
+                System.out.println("COORD: Primary decided: " + in.token(1));
+                outcomePrinted = true;
+                serverSocket.close();
+                outcome.complete(in.token(1));
+                break;
+            default:
+                break; //STANDBY, HEARTBEAT and anything else meant for participants
+        }
+    }
+
+    /**
+     * Takes over from a lost primary. If voting had started, participants that don't reconnect within the failover
+     * timeout are treated as failed, otherwise participants JOIN again from the start.
+     */
+    private void promote() {
+        synchronized (participantConnections) {
+            System.out.println("COORD: Lost primary Coordinator, standby taking over");
+            if (!votingStarted) {
+                participantPorts.clear();
+                participantsJoined = 0;
+            }
+            promoted.complete(null);
+        }
+        if (!votingStarted) {
+            return;
+        }
+        Thread failoverThread = new Thread(() -> {
+            try {
+                sleep(FAILOVER_TIMEOUT);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (participantConnections) {
+                for (Integer port : new ArrayList<>(participantPorts)) {
+                    if (!rejoined.contains(port)) {
+                        System.out.println("COORD: Participant at port " + port + " did not reconnect after failover, treating it as failed");
+                        parts--;
+                        memberLeft(port);
+                    }
+                }
+            }
+            if (parts == 0) {
+                System.out.println("All Participants failed with no consensus, no result.");
+                outcome.completeExceptionally(new IllegalStateException("All Participants failed with no consensus"));
+            } else {
+                checkDecision();
+            }
+        }, "failover-" + getPort());
+        failoverThread.setDaemon(true);
+        failoverThread.start();
+    }
+
+    /**
+     * Sends a state change to the standby Coordinator, if there is one
+     */
+    private void replicate(String message) {
+        synchronized (participantConnections) {
+            if (standby != null) {
+                standby.sendMessage(message);
+                standby.flush();
+            }
+        }
+    }
+
+    /**
+     * Sends HEARTBEAT to every connection (participants, observers and the standby) every HEARTBEAT_INTERVAL until the
+     * vote is decided. A standby only starts once it has taken over from the primary.
+     */
+    private void sendHeartbeats() {
+        promoted.join();
+        MessageWriter.Encoded heartbeat = MessageWriter.encode("HEARTBEAT");
+        while (!outcome.isDone()) {
+            try {
+                sleep(HEARTBEAT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (participantConnections) {
+                for (Thread thread : participantConnections.keySet()) {
+                    ((CoordinatorConnHandler) thread).sendMessage(heartbeat);
+                    ((CoordinatorConnHandler) thread).flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings a newly connected standby up to date, and tells participants to fail over to it
+     */
+    private void standbyConnected(CoordinatorConnHandler connection, int port) {
+        synchronized (tallyLock) {
+            synchronized (participantConnections) {
+                System.out.println("COORD: Standby Coordinator connected, listening on " + port);
+                standby = connection;
+                standbyPort = port;
+                connection.sendMessage("STATE " + parts + " " + restartEpoch + " " + (votingStarted ? 1 : 0) + " " + mode + " " + (ballot != null ? 1 : 0) + " " + String.join(" ", options));
+                for (Integer member : participantPorts) {
+                    connection.sendMessage("MEMBER " + member + " " + membershipVersion);
+                }
+                if (lastRestart != null) {
+                    connection.sendMessage(lastRestart);
+                }
+                if (mode == votingMode.STAR) {
+                    starVotes.forEach((from, vote) -> connection.sendMessage("RECEIVED " + from + " " + vote + " 1"));
+                } else {
+                    for (int i = 0; i < outcomes.size() && i < outcomesFrom.size(); i++) {
+                        connection.sendMessage("RECEIVED " + outcomesFrom.get(i) + " " + outcomes.get(i) + " " + roundsPerEpoch.getOrDefault(restartEpoch, 1));
+                    }
+                }
+                connection.flush();
+
+                MessageWriter.Encoded standbyMessage = MessageWriter.encode("STANDBY " + port);
+                for (Thread thread : participantConnections.keySet()) {
+                    if (thread != connection) {
+                        ((CoordinatorConnHandler) thread).sendMessage(standbyMessage);
+                        ((CoordinatorConnHandler) thread).flush();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when a participant reconnects to this standby after losing the primary, having already voted
+     */
+    private void participantRejoined(CoordinatorConnHandler participant, int epoch) {
+        synchronized (participantConnections) {
+            participant.voter = true;
+            rejoined.add(participant.getPort());
+            if (participantPorts.contains(participant.getPort())) {
+                System.out.println("COORD: Participant at port " + participant.getPort() + " reconnected after failover");
+            } else {
+                //Given up on after the failover timeout, it votes again from the current epoch
+                System.out.println("COORD: Participant at port " + participant.getPort() + " reconnected after being treated as failed, adding it back");
+                //Mirrors the failover timeout, which decrements parts for every participant it gives up on
+                parts++;
+                participantsJoined++;
+                participantPorts.add(participant.getPort());
+                membershipVersion++;
+                sendMembershipDelta("+" + participant.getPort());
+            }
+            //The primary may have been lost while sending RESTART
+            if (epoch < restartEpoch && lastRestart != null) {
+                participant.sendMessage(lastRestart);
+                participant.flush();
+            }
+        }
+    }
 
+    /**
+     * Removes a participant from the membership, and tells the others it has gone if voting has started
+     */
+    private void memberLeft(int port) {
+        synchronized (participantConnections) {
+            participantPorts.remove((Integer) port);
+            participantsJoined--;
+            membershipVersion++;
+            replicate("LEFT " + port + " " + parts + " " + membershipVersion);
+            if (votingStarted) {
+                sendMembershipDelta("-" + port);
+            }
+        }
     }
 
+    /**
+     * Sends MEMBERS <version> <+port or -port> to every voter, so a change in membership costs one short message per
+     * participant rather than a new DETAILS list each
+     */
+    private void sendMembershipDelta(String change) {
+        synchronized (participantConnections) {
+            MessageWriter.Encoded delta = MessageWriter.encode("MEMBERS " + membershipVersion + " " + change);
+            for (Thread thread : participantConnections.keySet()) {
+                CoordinatorConnHandler participant = (CoordinatorConnHandler) thread;
+                if (participant.isVoter()) {
+                    participant.sendMessage(delta);
+                    participant.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return How many of the current members have sent their outcome (or STAR vote) in this epoch. Participants that
+     * failed after sending one aren't counted, as parts no longer includes them.
+     */
+    private int receivedFromMembers() {
+        synchronized (participantConnections) {
+            int received = 0;
+            for (Integer port : outcomesFrom) {
+                if (participantPorts.contains(port)) {
+                    received++;
+                }
+            }
+            return received;
+        }
+    }
+
+    private void checkDecision() {
+        if (mode == votingMode.STAR) {
+            checkVotes();
+        } else {
+            checkOutcomes();
+        }
+    }
+
+    /**
+     * Must be called holding tallyLock
+     */
     private void outcomeReceived(String outcome) {
         outcomes.add(outcome); //OUTCOME <outcome> [<port>]
         checkOutcomes();
     }
 
     private void checkOutcomes() {
-        //Wait for outcomes from all connected participants (parts is decremented if a participant connection fails)
-        if (outcomes.size() >= parts && !outcomePrinted) {
-            System.out.println("COORD: Received majority votes from " + outcomes.size() + " participants, out of " + parts + " functional participants.");
-            //If all outcomes are the same, that outcome is conclusive.
-            if (outcomes.stream().allMatch(outcomes.get(0)::equals)) {
-                if (outcomes.get(0).equals("null")) {
-                    System.out.println("COORD: Participants could not decide on a majority or there was a tie.");
-                    //Restart voting for connected participants with tie values
-                    try {
-                        sleep(2000);
-                        synchronized (participantConnections) {
-                            participantConnections.keySet().stream()
-                                    .map(CoordinatorConnHandler.class::cast)
-                                    .forEach(e -> e.sendMessage("RESTART"));
+        //Checked and cleared under the lock, so two threads can't both restart the same epoch
+        synchronized (tallyLock) {
+            //Wait for outcomes from all connected participants (parts is decremented if a participant connection fails)
+            if (receivedFromMembers() >= parts && !outcomePrinted) {
+                System.out.println("COORD: Received majority votes from " + outcomes.size() + " participants, out of " + parts + " functional participants.");
+                //If all outcomes are the same, that outcome is conclusive.
+                if (outcomes.stream().allMatch(outcomes.get(0)::equals)) {
+                    if (outcomes.get(0).equals("null")) {
+                        System.out.println("COORD: Participants could not decide on a majority or there was a tie.");
+                        //Restart voting for connected participants with tie values
+                        try {
+                            sleep(2000);
+                            System.out.println("COORD: Epoch " + restartEpoch + " ended in round " + roundsPerEpoch.get(restartEpoch) + ", restarting");
+                            outcomesFrom.clear();
+                            outcomes.clear();
+                            restartEpoch++;
+                            MessageWriter.Encoded restart = MessageWriter.encode("RESTART " + restartEpoch + " " + MESH_RESTART_ROUND);
+                            ConsensusEvents.restart(parts, getPort(), restartEpoch, MESH_RESTART_ROUND);
+                            lastRestart = restart.text;
+                            replicate(restart.text);
+                            synchronized (participantConnections) {
+                                participantConnections.keySet().stream()
+                                        .map(CoordinatorConnHandler.class::cast)
+                                        .filter(CoordinatorConnHandler::isVoter)
+                                        .forEach(e -> {
+                                            e.sendMessage(restart);
+                                            e.flush();
+                                        });
+                            }
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
                         }
-                        outcomesFrom.clear();
-                        outcomes.clear();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                    } else {
+                        decide(outcomes.get(0));
                     }
+
                 } else {
-                    System.out.println("COORD: === OVERALL VOTE: " + outcomes.get(0) + " ===");
-                    outcomePrinted = true;
-                    //Close connections to participants as we have conclusive votes
-                    synchronized (participantConnections) {
-                        participantConnections.keySet().stream()
-                                .map(CoordinatorConnHandler.class::cast)
-                                .forEach(CoordinatorConnHandler::closeConnection);
-                    }
-                    //Closes connection to Participants
-                    closeAllConnections();
-                    System.exit(0);
+                    System.out.println("COORD: Participants did not reach same outcome: " + outcomes.toString());
                 }
+            }
+        }
+    }
 
-            } else {
-                System.out.println("COORD: Participants did not reach same outcome: " + outcomes.toString());
+    /**
+     * In STAR mode, tallies the votes once every functional participant has voted. A majority is decided straight
+     * away, otherwise voting restarts between the tied options (or every option voted for, if there was no majority).
+     */
+    private void checkVotes() {
+        synchronized (tallyLock) {
+            if (receivedFromMembers() < parts || outcomePrinted) {
+                return;
+            }
+            System.out.println("COORD: Received votes from " + starVotes.size() + " participants, out of " + parts + " functional participants: " + starVotes);
+            if (ballot != null) {
+                //Tallied per proposal, RESTART then lists the options still in contention for each one
+                List<String> choices = ballot.tally(starVotes.values());
+                String decision = Ballot.decision(choices);
+                if (decision != null) {
+                    decide(decision);
+                } else {
+                    System.out.println("COORD: No majority in every proposal, restarting with choices: " + choices);
+                    restartStar(choices);
+                }
+                return;
+            }
+            Map<String, Integer> votesCount = new HashMap<>();
+            for (String vote : starVotes.values()) {
+                votesCount.merge(vote, 1, Integer::sum);
             }
+            int maxVotes = Collections.max(votesCount.values());
+            List<String> majorityOptions = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : votesCount.entrySet()) {
+                if (entry.getValue() == maxVotes) {
+                    majorityOptions.add(entry.getKey());
+                }
+            }
+
+            if (majorityOptions.size() == 1 && maxVotes * 2 > starVotes.size()) {
+                decide(majorityOptions.get(0));
+                return;
+            }
+            if (majorityOptions.size() == 1) {
+                //RESTART will use any options voted for in this round
+                majorityOptions = new ArrayList<>(votesCount.keySet());
+            }
+            System.out.println("COORD: No majority, restarting with options: " + majorityOptions);
+            restartStar(majorityOptions);
+        }
+    }
+
+    /**
+     * Sends RESTART <epoch> 1 [<option>] to every voter in STAR mode, where every epoch is a single round of votes.
+     * Must be called holding tallyLock.
+     */
+    private void restartStar(List<String> restartOptions) {
+        starVotes.clear();
+        outcomesFrom.clear();
+        restartEpoch++;
+        ConsensusEvents.restart(parts, getPort(), restartEpoch, 1);
+        MessageWriter.Encoded restart = MessageWriter.encode("RESTART " + restartEpoch + " 1 " + String.join(" ", restartOptions));
+        lastRestart = restart.text;
+        replicate(restart.text);
+        synchronized (participantConnections) {
+            participantConnections.keySet().stream()
+                    .map(CoordinatorConnHandler.class::cast)
+                    .filter(CoordinatorConnHandler::isVoter)
+                    .forEach(e -> {
+                        e.sendMessage(restart);
+                        e.flush();
+                    });
+        }
+    }
+
+    /**
+     * Tells participants and observers the overall vote, then closes connections as the vote is conclusive
+     */
+    private void decide(String decision) {
+        System.out.println("COORD: === OVERALL VOTE: " + (ballot == null ? decision : ballot.decode(decision)) + " ===");
+        System.out.println("COORD: Rounds per epoch: " + roundsPerEpoch);
+        outcomePrinted = true;
+        MessageWriter.Encoded decided = MessageWriter.encode("DECIDED " + decision);
+        synchronized (participantConnections) {
+            participantConnections.keySet().stream()
+                    .map(CoordinatorConnHandler.class::cast)
+                    .forEach(e -> {
+                        e.sendMessage(decided);
+                        e.flush();
+                    });
+            closeAllConnections();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        outcome.complete(decision);
     }
 
     /**
      * Called by a Coordinator thread connected to a participant when a participant fails
      */
     private void participantDisconnected(CoordinatorConnHandler connection) {
-        participantPorts.remove((Integer) connection.getPort());
-        participantsJoined--;
-        if (!outcomesFrom.contains(connection.getPort())) {
-            parts--;
+        if (!connection.isVoter() || outcome.isDone()) {
+            //Observers (and connections that never joined) don't affect the vote, nor does anyone once it's decided
+            synchronized (participantConnections) {
+                participantConnections.remove(connection);
+                if (connection == standby) {
+                    System.out.println("COORD: Lost standby Coordinator");
+                    standby = null;
+                }
+            }
+            return;
         }
         //Don't remove a connection while something else is referencing it
         synchronized (participantConnections) {
             participantConnections.remove(connection);
+            //An outcome or vote it already sent still counts in this epoch, but it isn't waited on in later ones
+            parts--;
+            memberLeft(connection.getPort());
         }
         //In the case that ALL participants fail :(
         if (parts == 0) {
             System.out.println("All Participants failed with no consensus, no result.");
-            System.exit(1);
+            outcome.completeExceptionally(new IllegalStateException("All Participants failed with no consensus"));
+            return;
         }
 
-        checkOutcomes();
+        checkDecision();
     }
 
     private void sendDetailsVoteOptions() {
         synchronized (participantConnections) {
+            List<CoordinatorConnHandler> voters = new ArrayList<>();
             for (Thread thread : participantConnections.keySet()) {
                 CoordinatorConnHandler participant = (CoordinatorConnHandler) thread;
-                participant.sendDetails(participantPorts);
+                if (participant.isVoter()) {
+                    voters.add(participant);
+                }
+            }
+            sendDetailsVoteOptions(voters);
+        }
+    }
+
+    private void sendDetailsVoteOptions(List<CoordinatorConnHandler> voters) {
+        synchronized (participantConnections) {
+            //One membership list for everyone, each participant leaves itself out
+            StringBuilder details = new StringBuilder("DETAILS ").append(membershipVersion);
+            for (Integer port : participantPorts) {
+                details.append(" ").append(port);
+            }
+            MessageWriter.Encoded encodedDetails = MessageWriter.encode(details.toString());
+            for (CoordinatorConnHandler participant : voters) {
+                participant.sendMessage(encodedDetails);
             }
 
             StringBuilder voteOptions = new StringBuilder("VOTE_OPTIONS ");
             for (String opt : options) {
                 voteOptions.append(opt).append(" ");
             }
-            for (Thread thread : participantConnections.keySet()) {
-                CoordinatorConnHandler participant = (CoordinatorConnHandler) thread;
-                participant.sendMessage(voteOptions.toString());
+            //Encoded once and the same bytes written to every participant
+            MessageWriter.Encoded encodedOptions = MessageWriter.encode(voteOptions.toString());
+            for (CoordinatorConnHandler participant : voters) {
+                if (mode == votingMode.STAR) {
+                    participant.sendMessage("STAR"); //Vote straight to the Coordinator rather than connecting to peers
+                }
+                if (ballot != null) {
+                    participant.sendMessage("BALLOT"); //Each option is a proposal, votes are packed (see Ballot)
+                }
+                participant.sendMessage(encodedOptions);
+            }
+            //DETAILS and VOTE_OPTIONS go out to each participant together
+            for (CoordinatorConnHandler participant : voters) {
+                participant.flush();
             }
         }
     }
 
     private void participantJoined(CoordinatorConnHandler participant) {
-        participantPorts.add(participant.getPort());
-        participantsJoined++;
+        synchronized (participantConnections) {
+            if (standby != null) {
+                //Where to reconnect if this Coordinator is lost
+                participant.sendMessage("STANDBY " + standbyPort);
+                participant.flush();
+            }
+            if (votingStarted && participantPorts.contains(participant.getPort())) {
+                //Reconnected to this standby before the primary sent it DETAILS and VOTE_OPTIONS
+                System.out.println("COORD: Participant at port " + participant.getPort() + " reconnected after failover, resending DETAILS");
+                participant.voter = true;
+                rejoined.add(participant.getPort());
+                sendDetailsVoteOptions(Collections.singletonList(participant));
+                return;
+            }
+            if (votingStarted) {
+                //Too late to join the mesh, so the participant is only told the decision
+                System.out.println("COORD: Participant at port " + participant.getPort() + " joined after voting started, admitting as an observer");
+                participant.sendMessage("OBSERVE");
+                participant.flush();
+                return;
+            }
+            participant.voter = true;
+            participantPorts.add(participant.getPort());
+            participantsJoined++;
+            membershipVersion++;
+            replicate("MEMBER " + participant.getPort() + " " + membershipVersion);
+            checkStart();
+        }
+    }
 
-        if (participantsJoined >= parts) {
+    /**
+     * Starts voting once every expected participant has joined, or the join deadline has passed with a quorum joined
+     */
+    private void checkStart() {
+        if (votingStarted) {
+            return;
+        }
+        if (participantsJoined >= parts || deadlinePassed && participantsJoined >= quorum) {
+            if (participantsJoined < parts) {
+                System.out.println("COORD: Join deadline passed, starting with " + participantsJoined + " of " + parts + " participants");
+                parts = participantsJoined;
+            } else {
+                System.out.println("COORD: All participants have joined");
+            }
+            votingStarted = true;
+            replicate("STARTED " + parts);
             sendDetailsVoteOptions();
         }
     }
@@ -165,23 +794,24 @@ public class Coordinator {
 
     public static void main(String[] args) {
         try {
-            Coordinator coordinator = new Coordinator(args);
-            //Waits for all participants to connect
-            coordinator.awaitConnections();
-        } catch (InsufficientArgumentsException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            System.err.println("COORD: Unable to connect to participants");
+            Coordinator coordinator = fromArgs(args);
+            //Waits for all participants to connect, then for them to reach an overall vote
+            coordinator.start().join();
+            System.exit(0);
+        } catch (InsufficientArgumentsException | IOException e) {
             e.printStackTrace();
+        } catch (CompletionException e) {
+            System.exit(1);
         }
     }
 
     public class CoordinatorConnHandler extends Thread {
         private final Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
+        private MessageReader in;
+        private MessageWriter out;
         private int participantPort;
         private boolean running; //Whether the thread/connection is running as normal
+        private volatile boolean voter = false; //Joined before voting started, rather than observing
 
         /**
          * A class for managing a Coordinator connection to a participant
@@ -191,38 +821,77 @@ public class Coordinator {
         CoordinatorConnHandler(Socket socket) throws IOException {
             this.socket = socket;
             socket.setSoLinger(true,0);
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(socket.getOutputStream(), true);
+            socket.setTcpNoDelay(TCP_NO_DELAY);
+            this.in = new MessageReader(socket.getInputStream());
+            this.out = new MessageWriter(socket.getOutputStream());
             this.running = true;
         }
 
         @Override
         public void run() {
-            String receivedMessage;
+            //A standby only handles participants once it has taken over from the primary
+            promoted.join();
             while (running) {
                 try {
-                    receivedMessage = in.readLine();
-                    if (receivedMessage == null) {
+                    boolean received = in.next();
+                    if (received && MessageTrace.isEnabled()) {
+                        //A JOIN carries the port this connection is identified by from then on
+                        MessageTrace.received(Coordinator.this.getPort(), in.tokenEquals(0, MessageReader.JOIN) ? in.intToken(1) : participantPort, in.toString());
+                    }
+                    if (!received) {
                         System.out.println("COORD: Connection to participant at port " + participantPort + " closed unexpectedly.");
                         participantDisconnected(this);
                         closeConnection();
                         running = false;
-                    } else {
-                        String[] messageParts = receivedMessage.split(" ");
-                        switch (messageParts[0]) {
-                            //Participant telling Coordinator its port number/identifier
-                            case "JOIN":
-                                participantPort = Integer.parseInt(receivedMessage.replaceAll("[^0-9]", ""));
-                                participantJoined(this);
-                                break;
-                            case "OUTCOME":
-                                System.out.println("COORD: Received outcome from: " + participantPort + ": " + messageParts[1]);
+                    } else if (in.tokenEquals(0, MessageReader.JOIN)) {
+                        //Participant telling Coordinator its port number/identifier
+                        participantPort = in.intToken(1);
+                        injectFaults();
+                        ConsensusEvents.controlMessage("JOIN", participantPort, restartEpoch, 0);
+                        participantJoined(this);
+                    } else if (in.tokenEquals(0, MessageReader.OUTCOME)) {
+                        //OUTCOME <epoch> <round> <outcome> [<port>]
+                        //The epoch is compared under the lock, a restart can't then move it on before the outcome is counted
+                        synchronized (tallyLock) {
+                            if (in.intToken(1) != restartEpoch) {
+                                System.out.println("COORD: Discarding stale outcome from: " + participantPort + ": " + in);
+                            } else if (outcomesFrom.contains(participantPort)) {
+                                System.out.println("COORD: Discarding repeated outcome from: " + participantPort); //Resent after failover
+                            } else {
+                                String outcome = in.token(3);
+                                System.out.println("COORD: Received outcome from: " + participantPort + " in round " + in.intToken(2) + ": " + outcome);
                                 outcomesFrom.add(participantPort);
-                                outcomeReceived(messageParts[1]);
-                                break;
-                            default:
-                                throw new Coordinator.UnknownMessageException(receivedMessage);
+                                roundsPerEpoch.merge(restartEpoch, in.intToken(2), Math::max);
+                                replicate("RECEIVED " + participantPort + " " + outcome + " " + in.intToken(2));
+                                outcomeReceived(outcome);
+                            }
                         }
+                    } else if (in.tokenEquals(0, MessageReader.REJOIN)) {
+                        //REJOIN <port> <epoch>, from a participant failing over to this standby
+                        participantPort = in.intToken(1);
+                        injectFaults();
+                        participantRejoined(this, in.intToken(2));
+                    } else if (in.tokenEquals(0, MessageReader.STANDBY)) {
+                        //STANDBY <port>, from a standby Coordinator that will take over if this one is lost
+                        standbyConnected(this, in.intToken(1));
+                    } else if (in.tokenEquals(0, MessageReader.VOTE) && mode == votingMode.STAR) {
+                        //VOTE <epoch> <round> <port> <vote>
+                        synchronized (tallyLock) {
+                            if (in.intToken(1) != restartEpoch) {
+                                System.out.println("COORD: Discarding stale vote from: " + participantPort + ": " + in);
+                            } else if (outcomesFrom.contains(participantPort)) {
+                                System.out.println("COORD: Discarding repeated vote from: " + participantPort); //Resent after failover
+                            } else {
+                                System.out.println("COORD: Received vote from: " + participantPort + ": " + in.token(4));
+                                outcomesFrom.add(participantPort);
+                                starVotes.put(participantPort, in.token(4));
+                                roundsPerEpoch.merge(restartEpoch, in.intToken(2), Math::max);
+                                replicate("RECEIVED " + participantPort + " " + in.token(4) + " " + in.intToken(2));
+                                checkVotes();
+                            }
+                        }
+                    } else {
+                        throw new Coordinator.UnknownMessageException(in.toString());
                     }
 
                 } catch (SocketTimeoutException e) {
@@ -243,31 +912,44 @@ public class Coordinator {
         }
 
         /**
-         * Sends message DETAILS [<port>] to the Participant
-         * @param participantPorts Ports of all participants connected to Coordinator
+         * Buffers a custom message to the connected Participant, it is sent on the next flush()
+         * @param message Message to send
          */
-        void sendDetails(List<Integer> participantPorts) {
-            StringBuilder message = new StringBuilder("DETAILS ");
-            for (Integer port : participantPorts) {
-                if (port != participantPort) {
-                    message.append(port).append(" ");
-                }
-            }
+        void sendMessage(String message) {
+            MessageTrace.sent(Coordinator.this.getPort(), participantPort, message);
             out.println(message);
         }
 
         /**
-         * Sends a custom message to the connected Participant
+         * Buffers a message that has already been encoded for sending to several Participants
          * @param message Message to send
          */
-        void sendMessage(String message) {
-            out.println(message);
+        void sendMessage(MessageWriter.Encoded message) {
+            MessageTrace.sent(Coordinator.this.getPort(), participantPort, message.text);
+            out.write(message);
+        }
+
+        void flush() {
+            out.flush();
+        }
+
+        /**
+         * Applies any scripted latency, drops and partitions to messages sent to this participant, once its port is known
+         */
+        private void injectFaults() {
+            if (faults != null) {
+                out = faults.wrap(out, participantPort);
+            }
         }
 
         int getPort() {
             return this.participantPort;
         }
 
+        boolean isVoter() {
+            return voter;
+        }
+
         void closeConnection() {
             try {
                 socket.close();
@@ -0,0 +1,241 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Injects network conditions and failures into the outgoing connections of a Participant or Coordinator, for
+ * benchmarking the protocol on something other than a perfect loopback. Enabled with -Dconsensus.faults=<script file>,
+ * where each line is one of:
+ * <pre>
+ * link &lt;from|*&gt; &lt;to|*&gt; latency &lt;ms&gt;
+ * link &lt;from|*&gt; &lt;to|*&gt; jitter &lt;ms&gt;
+ * link &lt;from|*&gt; &lt;to|*&gt; bandwidth &lt;bytes per second&gt;
+ * link &lt;from|*&gt; &lt;to|*&gt; drop &lt;probability&gt;
+ * partition &lt;port,port,...&gt; &lt;port,port,...&gt; at &lt;ms&gt; for &lt;ms&gt;
+ * kill &lt;port&gt; round &lt;n&gt;
+ * kill &lt;port&gt; at &lt;ms&gt;
+ * </pre>
+ * Ports identify participants and Coordinators, later link lines override earlier ones, and times are ms since the
+ * process started. -Dconsensus.faultSeed makes drops and jitter repeatable, each link draws from its own generator
+ * seeded from it and the two ports, so one link's messages don't change another's. Kills halt the process without
+ * running shutdown hooks, as a crash would. "kill round" only applies to participants. Messages are delayed or dropped
+ * whole, multicast datagrams are not affected.
+ * @author Oscar van Leusen
+ */
+class FaultInjector {
+    private final int localPort;
+    private final long startTime = System.currentTimeMillis();
+    private final Long seed; //Null if drops and jitter shouldn't be repeatable
+    private final List<LinkRule> linkRules = new ArrayList<>();
+    private final List<Partition> partitions = new ArrayList<>();
+    private int killRound = -1;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fault-injector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class LinkRule {
+        final int from, to; //-1 matches any port
+        final String setting;
+        final double value;
+
+        LinkRule(int from, int to, String setting, double value) {
+            this.from = from;
+            this.to = to;
+            this.setting = setting;
+            this.value = value;
+        }
+    }
+
+    private static class Partition {
+        final Set<Integer> sideA, sideB;
+        final long start, end;
+
+        Partition(Set<Integer> sideA, Set<Integer> sideB, long start, long end) {
+            this.sideA = sideA;
+            this.sideB = sideB;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean separates(int from, int to, long time) {
+            return time >= start && time < end
+                    && (sideA.contains(from) && sideB.contains(to) || sideB.contains(from) && sideA.contains(to));
+        }
+    }
+
+    /**
+     * @return The injector configured by -Dconsensus.faults, or null if fault injection isn't enabled
+     */
+    static FaultInjector fromProperty(int localPort) {
+        String script = System.getProperty("consensus.faults");
+        if (script == null) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(Paths.get(script))) {
+            return new FaultInjector(localPort, reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read fault injection script " + script, e);
+        }
+    }
+
+    FaultInjector(int localPort, Reader script) throws IOException {
+        this.localPort = localPort;
+        String seed = System.getProperty("consensus.faultSeed");
+        this.seed = seed == null ? null : Long.parseLong(seed);
+
+        BufferedReader lines = new BufferedReader(script);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.replaceAll("#.*", "").trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                parseDirective(parts);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid fault injection directive on line " + lineNumber + ": " + line, e);
+            }
+        }
+        System.out.println(localPort + ": Fault injection enabled");
+    }
+
+    private void parseDirective(String[] parts) {
+        switch (parts[0]) {
+            case "link":
+                linkRules.add(new LinkRule(parsePort(parts[1]), parsePort(parts[2]), parts[3], Double.parseDouble(parts[4])));
+                if (!Arrays.asList("latency", "jitter", "bandwidth", "drop").contains(parts[3])) {
+                    throw new IllegalArgumentException("Unknown link setting " + parts[3]);
+                }
+                break;
+            case "partition":
+                long start = Long.parseLong(parts[4]);
+                partitions.add(new Partition(parsePorts(parts[1]), parsePorts(parts[2]), start, start + Long.parseLong(parts[6])));
+                break;
+            case "kill":
+                if (Integer.parseInt(parts[1]) != localPort) {
+                    break;
+                }
+                if (parts[2].equals("round")) {
+                    killRound = Integer.parseInt(parts[3]);
+                } else if (parts[2].equals("at")) {
+                    scheduler.schedule(() -> {
+                        System.out.println(localPort + ": FAULT INJECTION: killing process");
+                        Runtime.getRuntime().halt(1);
+                    }, Long.parseLong(parts[3]), TimeUnit.MILLISECONDS);
+                } else {
+                    throw new IllegalArgumentException("Expected round or at");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown directive " + parts[0]);
+        }
+    }
+
+    private static int parsePort(String port) {
+        return port.equals("*") ? -1 : Integer.parseInt(port);
+    }
+
+    private static Set<Integer> parsePorts(String ports) {
+        Set<Integer> set = new HashSet<>();
+        for (String port : ports.split(",")) {
+            set.add(Integer.parseInt(port));
+        }
+        return set;
+    }
+
+    /**
+     * Whether the script kills this participant on reaching the given round, the caller halts the process
+     */
+    boolean killInRound(int round) {
+        return round == killRound;
+    }
+
+    /**
+     * Wraps the writer for this process's connection to toPort so its messages are subject to the script
+     */
+    MessageWriter wrap(MessageWriter writer, int toPort) {
+        double latency = 0, jitter = 0, bandwidth = 0, drop = 0;
+        for (LinkRule rule : linkRules) {
+            if ((rule.from == -1 || rule.from == localPort) && (rule.to == -1 || rule.to == toPort)) {
+                switch (rule.setting) {
+                    case "latency": latency = rule.value; break;
+                    case "jitter": jitter = rule.value; break;
+                    case "bandwidth": bandwidth = rule.value; break;
+                    case "drop": drop = rule.value; break;
+                }
+            }
+        }
+        Random random = seed == null ? new Random() : new Random(seed ^ ((long) localPort << 32 | toPort));
+        return new FaultyLink(writer, toPort, random, latency, jitter, bandwidth, drop);
+    }
+
+    /**
+     * A MessageWriter that drops or delays messages before passing them to the real writer, keeping them in order
+     */
+    private class FaultyLink extends MessageWriter {
+        private final int toPort;
+        private final Random random;
+        private final double latency, jitter, bandwidth, drop;
+        private long lastDelivery = 0; //Messages aren't reordered, as on a TCP connection
+        private final ArrayDeque<Encoded> delayed = new ArrayDeque<>(); //Each scheduled delivery sends the oldest of these
+
+        FaultyLink(MessageWriter writer, int toPort, Random random, double latency, double jitter, double bandwidth, double drop) {
+            super(writer);
+            this.toPort = toPort;
+            this.random = random;
+            this.latency = latency;
+            this.jitter = jitter;
+            this.bandwidth = bandwidth;
+            this.drop = drop;
+        }
+
+        @Override
+        synchronized void write(Encoded message) {
+            long now = System.currentTimeMillis();
+            for (Partition partition : partitions) {
+                if (partition.separates(localPort, toPort, now - startTime)) {
+                    return;
+                }
+            }
+            if (drop > 0 && random.nextDouble() < drop) {
+                return;
+            }
+            double delay = latency + (jitter > 0 ? random.nextGaussian() * jitter : 0);
+            long delivery = now + Math.max(0, (long) delay);
+            if (bandwidth > 0) {
+                //Each message has to wait for the previous one to finish transmitting
+                delivery = Math.max(delivery, lastDelivery) + (long) (message.length() * 1000 / bandwidth);
+            }
+            delivery = Math.max(delivery, lastDelivery);
+            lastDelivery = delivery;
+
+            if (delivery <= now && delayed.isEmpty()) {
+                super.write(message); //Sent on the next flush(), as without fault injection
+            } else {
+                //The scheduler's clock can run a little behind currentTimeMillis(), so deliveries due at almost the same
+                //time may run out of order, taking from the queue keeps the messages in order regardless
+                delayed.add(message);
+                scheduler.schedule(this::deliverNext, delivery - now, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void deliverNext() {
+            synchronized (this) {
+                super.write(delayed.poll());
+            }
+            flush();
+        }
+    }
+}
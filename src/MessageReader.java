@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads newline terminated protocol messages from a socket into a reusable buffer and tokenizes them in place, so
+ * ports and votes can be read straight out of the buffer without creating a String per line or String[] per message.
+ * @author Oscar van Leusen
+ */
+class MessageReader {
+    static final byte[] VOTE = "VOTE".getBytes(StandardCharsets.UTF_8);
+    static final byte[] JOIN = "JOIN".getBytes(StandardCharsets.UTF_8);
+    static final byte[] OUTCOME = "OUTCOME".getBytes(StandardCharsets.UTF_8);
+    static final byte[] HELLO = "HELLO".getBytes(StandardCharsets.UTF_8);
+    static final byte[] SHM = "SHM".getBytes(StandardCharsets.UTF_8);
+    static final byte[] REJOIN = "REJOIN".getBytes(StandardCharsets.UTF_8);
+    static final byte[] STANDBY = "STANDBY".getBytes(StandardCharsets.UTF_8);
+    static final byte[] PING = "PING".getBytes(StandardCharsets.UTF_8);
+    static final byte[] PONG = "PONG".getBytes(StandardCharsets.UTF_8);
+
+    private final InputStream in;
+    //Heap buffer rather than direct, it's filled through the socket's InputStream so that SO_TIMEOUT still applies
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private int lineStart = 0;
+    private int lineEnd = -1; //Index of the '\n' terminating the current message, -1 before the first message
+    private int[] tokenStart = new int[16];
+    private int[] tokenEnd = new int[16];
+    private int tokenCount = 0;
+
+    MessageReader(InputStream in) {
+        this.in = in;
+        buffer.limit(0);
+    }
+
+    /**
+     * Blocks until the next message has been received, then tokenizes it
+     * @return false if the connection was closed before another message was received
+     * @throws IOException Exception thrown if there is an issue with the socket connection (including SO_TIMEOUT)
+     */
+    boolean next() throws IOException {
+        //Skip past the previous message
+        buffer.position(lineEnd + 1);
+        int newline;
+        while ((newline = findNewline()) < 0) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        lineStart = buffer.position();
+        lineEnd = newline;
+        tokenize();
+        return true;
+    }
+
+    /**
+     * Tokenizes a message that was received whole, such as in a datagram, instead of reading from the stream
+     * @return false if the bytes don't contain a complete message
+     */
+    boolean next(byte[] data, int offset, int length) {
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.put(data, offset, length);
+        buffer.flip();
+        lineEnd = -1;
+        int newline = findNewline();
+        if (newline < 0) {
+            return false;
+        }
+        lineStart = 0;
+        lineEnd = newline;
+        tokenize();
+        return true;
+    }
+
+    private int findNewline() {
+        byte[] bytes = buffer.array();
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves any partial message to the start of the buffer (growing it if the message doesn't fit) and reads more bytes
+     * @return false if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            larger.put(buffer);
+            larger.flip();
+            buffer = larger;
+        } else if (buffer.position() > 0) {
+            buffer.compact();
+            buffer.flip();
+        }
+        //The previous message is gone now, so a read that times out must not leave next() pointing past it
+        lineEnd = -1;
+        byte[] bytes = buffer.array();
+        int read = in.read(bytes, buffer.limit(), buffer.capacity() - buffer.limit());
+        if (read < 0) {
+            return false;
+        }
+        buffer.limit(buffer.limit() + read);
+        return true;
+    }
+
+    private void tokenize() {
+        byte[] bytes = buffer.array();
+        int end = lineEnd;
+        if (end > lineStart && bytes[end - 1] == '\r') {
+            end--;
+        }
+        tokenCount = 0;
+        int i = lineStart;
+        while (i < end) {
+            while (i < end && bytes[i] == ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            if (tokenCount == tokenStart.length) {
+                tokenStart = Arrays.copyOf(tokenStart, tokenCount * 2);
+                tokenEnd = Arrays.copyOf(tokenEnd, tokenCount * 2);
+            }
+            tokenStart[tokenCount] = i;
+            while (i < end && bytes[i] != ' ') {
+                i++;
+            }
+            tokenEnd[tokenCount++] = i;
+        }
+    }
+
+    int tokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * @return Whether token i of the current message is exactly the given (UTF-8) bytes
+     */
+    boolean tokenEquals(int i, byte[] expected) {
+        if (i >= tokenCount || tokenEnd[i] - tokenStart[i] != expected.length) {
+            return false;
+        }
+        byte[] bytes = buffer.array();
+        for (int j = 0; j < expected.length; j++) {
+            if (bytes[tokenStart[i] + j] != expected[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A hash of token i of the current message, equal for equal tokens, so it can be looked up without a String
+     */
+    int tokenHash(int i) {
+        byte[] bytes = buffer.array();
+        int hash = 1;
+        for (int j = tokenStart[i]; j < tokenEnd[i]; j++) {
+            hash = 31 * hash + bytes[j];
+        }
+        return hash;
+    }
+
+    /**
+     * Parses token i of the current message as a non-negative decimal integer
+     * @throws NumberFormatException If the token is missing, isn't a number, or doesn't fit in an int
+     */
+    int intToken(int i) {
+        if (i >= tokenCount || tokenStart[i] == tokenEnd[i]) {
+            throw new NumberFormatException("Missing integer token " + i + " in: " + this);
+        }
+        if (tokenEnd[i] - tokenStart[i] > 10) {
+            throw new NumberFormatException("Integer token " + i + " is too long in: " + this);
+        }
+        byte[] bytes = buffer.array();
+        int value = 0;
+        for (int j = tokenStart[i]; j < tokenEnd[i]; j++) {
+            int digit = bytes[j] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid integer token " + i + " in: " + this);
+            }
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Integer token " + i + " overflows in: " + this);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Creates a String for token i, only for tokens that can't be matched against known values with tokenEquals()
+     */
+    String token(int i) {
+        return new String(buffer.array(), tokenStart[i], tokenEnd[i] - tokenStart[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The whole current message, as readLine() would have returned it
+     */
+    @Override
+    public String toString() {
+        return new String(buffer.array(), lineStart, Math.max(0, lineEnd - lineStart), StandardCharsets.UTF_8);
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+}
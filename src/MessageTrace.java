@@ -0,0 +1,184 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opt-in binary trace of every protocol message sent and received, enabled with -Dconsensus.trace=<file>. Each process
+ * needs its own file, participants embedded with ConsensusCluster share the file of the process they run in.
+ * Records are written as:
+ * <pre>
+ * long   time (microseconds since the epoch, so traces from processes on one host line up)
+ * byte   SENT or RECEIVED
+ * int    local port
+ * int    peer port (-1 for a multicast send)
+ * int    epoch, or -1 if the message isn't tagged with one
+ * int    round, or -1 if the message isn't tagged with one
+ * int    length, followed by the message in UTF-8
+ * </pre>
+ * Each record is flushed as it's written, so a trace is complete up to the last message even if the process is killed.
+ * Traces are replayed by ConsensusSimulator.
+ * @author Oscar van Leusen
+ */
+class MessageTrace {
+    static final byte SENT = 0;
+    static final byte RECEIVED = 1;
+    private static final int MAGIC = 0x43545243; //"CTRC"
+
+    private static final MessageTrace trace = open(System.getProperty("consensus.trace"));
+
+    private final DataOutputStream out;
+
+    private MessageTrace(Path path) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private static MessageTrace open(String file) {
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new MessageTrace(Paths.get(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create message trace " + file, e);
+        }
+    }
+
+    static boolean isEnabled() {
+        return trace != null;
+    }
+
+    static void sent(int localPort, int peerPort, String message) {
+        if (trace != null) {
+            trace.record(SENT, localPort, peerPort, message);
+        }
+    }
+
+    static void received(int localPort, int peerPort, String message) {
+        if (trace != null) {
+            trace.record(RECEIVED, localPort, peerPort, message);
+        }
+    }
+
+    /**
+     * Records every message written through the writer as sent from localPort to peerPort
+     */
+    static MessageWriter wrap(MessageWriter writer, int localPort, int peerPort) {
+        if (trace == null) {
+            return writer;
+        }
+        return new MessageWriter(writer) {
+            @Override
+            void write(Encoded message) {
+                sent(localPort, peerPort, message.text);
+                super.write(message);
+            }
+        };
+    }
+
+    private synchronized void record(byte direction, int localPort, int peerPort, String message) {
+        //VOTE, OUTCOME and RESTART all start <type> <epoch> <round>
+        int epoch = -1;
+        int round = -1;
+        String[] tokens = message.split(" ", 4);
+        if (tokens.length >= 3 && (tokens[0].equals("VOTE") || tokens[0].equals("OUTCOME") || tokens[0].equals("RESTART"))) {
+            try {
+                epoch = Integer.parseInt(tokens[1]);
+                round = Integer.parseInt(tokens[2]);
+            } catch (NumberFormatException e) {
+                //Left untagged
+            }
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            out.writeLong(ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now()));
+            out.writeByte(direction);
+            out.writeInt(localPort);
+            out.writeInt(peerPort);
+            out.writeInt(epoch);
+            out.writeInt(round);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            //Flushed per record, the shutdown hook doesn't run if the process is killed and the trace must survive that
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One traced message
+     */
+    static final class Record {
+        final long time;
+        final byte direction;
+        final int localPort;
+        final int peerPort;
+        final int epoch;
+        final int round;
+        final String message;
+
+        Record(long time, byte direction, int localPort, int peerPort, int epoch, int round, String message) {
+            this.time = time;
+            this.direction = direction;
+            this.localPort = localPort;
+            this.peerPort = peerPort;
+            this.epoch = epoch;
+            this.round = round;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return time + " " + localPort + (direction == SENT ? " -> " : " <- ") + peerPort + ": " + message;
+        }
+    }
+
+    /**
+     * Reads every record from a trace file, stopping at a record cut short by the process exiting
+     */
+    static List<Record> read(Path path) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a message trace");
+            }
+            while (true) {
+                try {
+                    long time = in.readLong();
+                    byte direction = in.readByte();
+                    int localPort = in.readInt();
+                    int peerPort = in.readInt();
+                    int epoch = in.readInt();
+                    int round = in.readInt();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    records.add(new Record(time, direction, localPort, peerPort, epoch, round, new String(bytes, StandardCharsets.UTF_8)));
+                } catch (EOFException e) {
+                    return records;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffers newline terminated protocol messages to a socket until flush() is called. Messages broadcast to several
+ * connections are encoded once with encode() and the same bytes are written to every connection. Messages are UTF-8,
+ * so options can contain any characters other than spaces.
+ * Like PrintWriter, write errors are not thrown, a failed connection is detected by its reading thread instead.
+ * A writer can also wrap another writer (see OutboundQueue, FaultInjector and MessageTrace), overriding only the
+ * methods it changes and calling super to pass messages on.
+ * @author Oscar van Leusen
+ */
+class MessageWriter {
+    private final OutputStream out; //Null when wrapping another writer
+    private final MessageWriter next;
+    private boolean error = false;
+
+    MessageWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out);
+        this.next = null;
+    }
+
+    /**
+     * Passes every message, flush() and close() on to the given writer
+     */
+    MessageWriter(MessageWriter next) {
+        this.out = null;
+        this.next = next;
+    }
+
+    /**
+     * A message encoded once, ready to be written to any number of connections. The bytes are never modified.
+     */
+    static final class Encoded {
+        final String text;
+        private final byte[] bytes;
+
+        private Encoded(String text) {
+            this.text = text;
+            this.bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        int length() {
+            return bytes.length;
+        }
+
+        /**
+         * Copies the encoded bytes into another buffer, such as a datagram, without exposing the shared array
+         */
+        void copyTo(byte[] destination, int offset) {
+            System.arraycopy(bytes, 0, destination, offset, bytes.length);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    static Encoded encode(String message) {
+        return new Encoded(message);
+    }
+
+    void write(Encoded message) {
+        if (next != null) {
+            next.write(message);
+        } else if (!error) {
+            try {
+                out.write(message.bytes);
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+    }
+
+    /**
+     * Encodes and buffers a message only sent to this connection
+     */
+    void println(String message) {
+        write(encode(message));
+    }
+
+    void flush() {
+        if (next != null) {
+            next.flush();
+        } else if (!error) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+    }
+
+    void close() {
+        if (next != null) {
+            next.close();
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends a peer's messages from its own thread, so a participant broadcasting a round never waits on one slow (full or
+ * GC-paused) peer before writing to the rest. Messages are handed over on flush(), at most
+ * -Dconsensus.outboundQueue (default 8) can be waiting, and -Dconsensus.outboundOverflow chooses what happens beyond that:
+ * <ul>
+ *     <li>coalesce (default) - discard everything waiting and send only the latest message, combined votes carry every
+ *     vote known so far so the latest one supersedes the rest</li>
+ *     <li>drop - discard the oldest waiting messages, the earliest rounds, until the new ones fit</li>
+ *     <li>suspect - treat the peer as failed, as if its connection had timed out</li>
+ * </ul>
+ * @author Oscar van Leusen
+ */
+class OutboundQueue extends MessageWriter {
+    enum overflowPolicy { COALESCE, DROP, SUSPECT }
+
+    private static final int CAPACITY = Integer.getInteger("consensus.outboundQueue", 8);
+    private static final overflowPolicy OVERFLOW = overflowPolicy.valueOf(System.getProperty("consensus.outboundOverflow", "coalesce").toUpperCase());
+
+    private final String name;
+    private final Runnable onSuspect;
+    private final List<Encoded> pending = new ArrayList<>(); //Written since the last flush()
+    private final ArrayDeque<Encoded> queued = new ArrayDeque<>(); //Flushed, waiting for the sending thread
+    private boolean sending = false;
+    private boolean closed = false;
+
+    /**
+     * @param writer Writer for the peer connection, only ever used by the sending thread after this
+     * @param name Used in log messages and the sending thread's name
+     * @param onSuspect Called (on the thread calling flush()) if the peer falls too far behind under the suspect policy,
+     *                  it should only hand the failure to the thread that owns the connection
+     */
+    OutboundQueue(MessageWriter writer, String name, Runnable onSuspect) {
+        super(writer);
+        this.name = name;
+        this.onSuspect = onSuspect;
+        Thread sender = new Thread(this::send, "outbound-" + name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    synchronized void write(Encoded message) {
+        if (!closed) {
+            pending.add(message);
+        }
+    }
+
+    @Override
+    void flush() {
+        boolean suspect = false;
+        synchronized (this) {
+            if (closed || pending.isEmpty()) {
+                return;
+            }
+            int overflow = queued.size() + pending.size() - CAPACITY;
+            if (overflow > 0) {
+                switch (OVERFLOW) {
+                    case COALESCE:
+                        System.out.println(name + ": Outbound queue full, coalescing " + (queued.size() + pending.size()) + " messages to the latest");
+                        queued.clear();
+                        queued.add(pending.get(pending.size() - 1));
+                        break;
+                    case DROP:
+                        System.out.println(name + ": Outbound queue full, dropping " + overflow + " superseded messages");
+                        for (int i = 0; i < overflow; i++) {
+                            if (queued.isEmpty()) {
+                                pending.remove(0);
+                            } else {
+                                queued.poll();
+                            }
+                        }
+                        queued.addAll(pending);
+                        break;
+                    case SUSPECT:
+                        System.out.println(name + ": Outbound queue full, suspecting peer has failed");
+                        suspect = true;
+                        closed = true;
+                        queued.clear();
+                        break;
+                }
+            } else {
+                queued.addAll(pending);
+            }
+            pending.clear();
+            notifyAll();
+        }
+        if (suspect) {
+            onSuspect.run();
+        }
+    }
+
+    /**
+     * Waits (up to waitTime ms) for every flushed message to be written to the connection. Used before simulating a
+     * failure, where the votes must have been sent before the process exits.
+     */
+    synchronized void awaitSent(long waitTime) {
+        long deadline = System.currentTimeMillis() + waitTime;
+        long remaining;
+        while ((!queued.isEmpty() || sending) && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void send() {
+        List<Encoded> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                sending = false;
+                notifyAll();
+                while (queued.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                batch.addAll(queued);
+                queued.clear();
+                sending = true;
+            }
+            //Written outside the lock, so the participant can keep queueing while this blocks
+            for (Encoded message : batch) {
+                super.write(message);
+            }
+            super.flush();
+            batch.clear();
+        }
+    }
+
+    @Override
+    void close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            queued.clear();
+            notifyAll();
+        }
+        super.close();
+    }
+}
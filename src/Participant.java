@@ -1,6 +1,11 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
@@ -13,42 +18,98 @@ public class Participant extends Thread {
     enum failureCondition { SUCCESS, DURING, AFTER }
     enum revoteReason { FAILURE, INCOMPLETE, PROPAGATE }
 
+    //Whether to disable Nagle's algorithm on the Coordinator and peer sockets, messages are buffered and flushed once per round
+    private static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("consensus.tcpNoDelay", "true"));
+    //Whether to log every vote sent and received, turned off with -Dconsensus.logVotes=false for large runs as each line builds a String
+    private static final boolean LOG_VOTES = Boolean.parseBoolean(System.getProperty("consensus.logVotes", "true"));
+    //Slots in the cache of packed ballot votes received (a power of two), each participant's vote needs one per epoch
+    private static final int PACKED_VOTE_SLOTS = 256;
+
     private List<Thread> participantsHigherPort = new ArrayList<>(); //Stores each connection to a participant on a higher port (ParticipantClientConnection)
     private List<Thread> participantsLowerPort = new ArrayList<>(); //Stores each connection to a participant on a lower port (ParticipantServerConnection)
     private boolean connectionsMade = false;
-    private PrintWriter out;
+    private boolean observing = false; //Joined after voting started, so only waits to be told the decision
+    private boolean starVoting = false; //Votes go straight to the Coordinator instead of to peers
+    private ParticipantMulticastConnection multicast; //Only used if consensus.multicast is set, otherwise votes go over the TCP connections
+    private Socket coordinatorSocket;
+    private MessageWriter out;
     private BufferedReader in;
+    private ServerSocket serverSocket;
 
+    private int coordinatorPort;
+    private int standbyPort = -1; //Standby Coordinator to fail over to if the Coordinator is lost, given by STANDBY <port>
+    private String lastOutcome; //Last OUTCOME (or STAR vote) sent to the Coordinator, resent to the standby on failover
     private final int listenPort;
     private final int timeout;
     private final failureCondition failureCond;
-    private List<Integer> otherParticipants;
+    private final FaultInjector faults; //Only set if -Dconsensus.faults is given, for benchmarking under adverse network conditions
+    private volatile List<Integer> otherParticipants; //Replaced rather than modified when a MEMBERS delta arrives, as connection threads read it
+    private int membershipVersion = -1; //Version of the membership list last applied from DETAILS or MEMBERS
 
     private boolean failed = false;
-    private boolean running; //Whether the thread/connection is running as normal
+    private volatile boolean running; //Whether the thread/connection is running as normal
     private int roundNumber = 1;
-    private int votesRequired = 0;
+    private volatile int restartEpoch = 0; //Epoch given by the last RESTART, used with roundNumber to tag VOTE/OUTCOME messages
     private int participantsConnected = 0;
-    private boolean hasSharedVotes = false; //Flag used to ensure a participant has shared all of its votes before it sends its result to the participant
-    private boolean majorityVoteSent = false;
-    private boolean revoting = false;
     private int votesSharedCount = 0;
     private List<String> voteOptions = new ArrayList<>();
+    private byte[][] voteOptionBytes = new byte[0][]; //Encoded voteOptions (same order), matched against received votes
+    private final byte[][] packedVoteBytes = new byte[PACKED_VOTE_SLOTS][]; //Packed ballot votes received, by token hash
+    private final String[] packedVotes = new String[PACKED_VOTE_SLOTS]; //Decoded packedVoteBytes, reused for every repeat of a vote
     private String chosenVote; //Randomly chosen vote from this participant
-    private Map<Integer, Long> timeVoteMissing = new HashMap<>(); //Assists in timeout period for missing participant votes
-    private final Map<Integer, String> participantVotes = new HashMap<>();
+    private Ballot ballot; //Set if BALLOT preceded VOTE_OPTIONS, chosenVote and the votes received are then packed
+    private List<String> ballotChoices; //Options still in contention for each proposal of the ballot, used during a RESTART round
+    private String heldMessage; //Read from the Coordinator between rounds while looking for MEMBERS, returned by the next readCoordinator()
+    private final RoundState rounds = new RoundState(); //Votes, votes required and revote flags, guarded by its own lock
     private List<String> majorityOptions = new ArrayList<>(); //Participant votes with majority of votes (including ties), used during a RESTART round
+    private final CompletableFuture<String> outcome = new CompletableFuture<>(); //Completed with the majority vote sent to the Coordinator
+    private CountDownLatch clientsConnected = new CountDownLatch(0); //Counted down as each ParticipantClientConnection connects or gives up
+
+    /**
+     * Creates a Participant and connects it to the Coordinator, call start() to JOIN and begin voting.
+     * Failure conditions 1 and 2 (and scripted kills) simulate a crash with System.exit, so only SUCCESS should be
+     * used when the participant is embedded in another application.
+     * @param coordinatorPort Port the Coordinator is listening on
+     * @param listenPort Port to listen for other participants on, or 0 for any free port
+     * @param timeout Time in ms after which a silent participant is considered failed
+     * @param failureCond When (if at all) this participant should simulate failing
+     * @throws IOException Thrown if the port can't be listened on or the Coordinator can't be reached
+     */
+    Participant(int coordinatorPort, int listenPort, int timeout, failureCondition failureCond) throws IOException {
+        //Opens ServerSocket used to communicate with participants on lower port numbers
+        serverSocket = new ServerSocket(listenPort);
+        this.coordinatorPort = coordinatorPort;
+        this.listenPort = serverSocket.getLocalPort();
+        this.timeout = timeout;
+        this.failureCond = failureCond;
+        running = true;
+        faults = FaultInjector.fromProperty(this.listenPort);
 
-    private Participant(String[] args) throws InsufficientArgumentsException {
+        try {
+            connectCoordinator();
+            System.out.println(this.listenPort + ": Initialised Participant, listening on " + this.listenPort + ", failure condition: " + failureCond);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    private void connectCoordinator() throws IOException {
+        coordinatorSocket = new Socket("localhost", coordinatorPort);
+        coordinatorSocket.setSoLinger(true,0);
+        coordinatorSocket.setTcpNoDelay(TCP_NO_DELAY);
+        //The Coordinator sends HEARTBEAT regularly, so a silent one has hung or been cut off rather than still deciding
+        coordinatorSocket.setSoTimeout(Coordinator.HEARTBEAT_TIMEOUT);
+        out = MessageTrace.wrap(injectFaults(new MessageWriter(coordinatorSocket.getOutputStream()), coordinatorPort), listenPort, coordinatorPort);
+        in = new BufferedReader(new InputStreamReader(coordinatorSocket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Participant fromArgs(String[] args) throws InsufficientArgumentsException, IOException {
         //Bare-minimum number of arguments is 4, <cport> <pport> <timeout> <failurecond>
         if (args.length < 4) {
             throw new InsufficientArgumentsException(args);
         }
-        int coordinatorPort = Integer.parseInt(args[0]);
-        listenPort = Integer.parseInt(args[1]);
-        timeout = Integer.parseInt(args[2]);
-        running = true;
-
+        failureCondition failureCond;
         switch (Integer.parseInt(args[3])) {
             case 0:
                 failureCond = failureCondition.SUCCESS;
@@ -62,88 +123,149 @@ public class Participant extends Thread {
             default:
                 throw new IllegalArgumentException();
         }
+        return new Participant(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), failureCond);
+    }
 
+    int getPort() {
+        return listenPort;
+    }
 
-        try {
-            Socket socket = new Socket("localhost", coordinatorPort);
-            socket.setSoLinger(true,0);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            System.out.println(listenPort + ": Initialised Participant, listening on " + listenPort + ", failure condition: " + failureCond);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * @return The majority vote this participant sent to the Coordinator, completed once the Coordinator has all
+     * outcomes and closes the connection. Completed exceptionally if shutdown() is called or the Coordinator is lost first.
+     */
+    CompletableFuture<String> outcome() {
+        return outcome;
     }
 
     @Override
     public void run() {
+        try {
+            sendJoin();
+            awaitDetails();
+            if (observing) {
+                observe();
+                return;
+            }
+            awaitOptions();
+            if (starVoting) {
+                voteThroughCoordinator();
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println(listenPort + ": Lost connection to the Coordinator before voting started");
+            outcome.completeExceptionally(new SocketException("Lost connection to the Coordinator before voting started"));
+            shutdown();
+            return;
+        }
+
         while (running) {
             try {
                 if (!connectionsMade) {
+                    ConsensusEvents.MeshEstablished mesh = ConsensusEvents.meshEstablished(listenPort);
                     awaitConnections();
                     //Waits for all of the participants to be connected before proceeding to send votes
-                    long startTime = System.currentTimeMillis();
-                    while (participantsHigherPort.stream()
-                            .map(ParticipantClientConnection.class::cast)
-                            .anyMatch(e -> !e.isConnected())) {
-                        ; //Just stay here until they've all connected...
+                    clientsConnected.await();
+                    if (outcome.isDone()) {
+                        return; //Shut down while connecting
                     }
                     System.out.println(listenPort + ": ALL PEER-TO-PEER CONNECTIONS ESTABLISHED");
                     connectionsMade = true;
                     //Enables participant timeouts now that connections have been established
                     enableTimeouts();
+                    if (mesh != null && mesh.shouldCommit()) {
+                        mesh.peers = participantsConnected;
+                        mesh.multicast = multicast != null;
+                        mesh.commit();
+                    }
                     sleep(500);
                 }
 
+                //Membership changes are applied between rounds, as the Coordinator isn't otherwise read until OUTCOME is sent
+                if (!rounds.majorityVoteSent) {
+                    readPendingMembership();
+                }
+
+                //Simulates the process being killed mid-protocol, if scripted for benchmarking
+                if (faults != null && faults.killInRound(roundNumber)) {
+                    System.out.println(listenPort + ": FAULT INJECTION: killing participant in round " + roundNumber);
+                    Runtime.getRuntime().halt(1);
+                }
+
+                ConsensusEvents.VoteRound round = ConsensusEvents.voteRound(listenPort, restartEpoch, roundNumber);
+
                 //Send round 1 votes
                 if (roundNumber == 1) {
-                    for (Thread thread : participantsLowerPort) {
-                        ParticipantServerConnection conn = (ParticipantServerConnection) thread;
-                        conn.sendVotes(chosenVote);
-                        votesSharedCount++;
-                        //Simulates failure condition 1 (Failing during step 4 after sharing its vote with some but not all other participants)
-                        if (votesSharedCount >= 1 && failureCond == failureCondition.DURING) {
-                            System.out.println(listenPort + ": INITIATING FAILURE CONDITION 1");
-                            System.exit(1);
+                    //Encoded once and the same bytes written to every peer
+                    MessageWriter.Encoded vote = MessageWriter.encode("VOTE " + restartEpoch + " " + roundNumber + " " + listenPort + " " + chosenVote);
+                    //Failure condition 1 needs to reach some but not all participants, so it always uses TCP
+                    boolean multicastSent = multicast != null && failureCond != failureCondition.DURING && multicast.send(vote);
+                    if (!multicastSent) {
+                        for (Thread thread : participantsLowerPort) {
+                            ParticipantServerConnection conn = (ParticipantServerConnection) thread;
+                            conn.sendVotes(vote);
+                            votesSharedCount++;
+                            //Simulates failure condition 1 (Failing during step 4 after sharing its vote with some but not all other participants)
+                            if (votesSharedCount >= 1 && failureCond == failureCondition.DURING) {
+                                conn.flush();
+                                conn.awaitSent();
+                                System.out.println(listenPort + ": INITIATING FAILURE CONDITION 1");
+                                System.exit(1);
+                            }
                         }
-                    }
 
-                    for (Thread thread : participantsHigherPort) {
-                        ParticipantClientConnection conn = (ParticipantClientConnection) thread;
-                        conn.sendVotes(chosenVote);
-                        votesSharedCount++;
-                        //Simulates failure condition 1 (Failing during step 4 after sharing its vote with some but not all other participants)
-                        if (votesSharedCount >= 1 && failureCond == failureCondition.DURING) {
-                            System.out.println(listenPort + ": INITIATING FAILURE CONDITION 1");
-                            System.exit(1);
+                        for (Thread thread : participantsHigherPort) {
+                            ParticipantClientConnection conn = (ParticipantClientConnection) thread;
+                            conn.sendVotes(vote);
+                            votesSharedCount++;
+                            //Simulates failure condition 1 (Failing during step 4 after sharing its vote with some but not all other participants)
+                            if (votesSharedCount >= 1 && failureCond == failureCondition.DURING) {
+                                conn.flush();
+                                conn.awaitSent();
+                                System.out.println(listenPort + ": INITIATING FAILURE CONDITION 1");
+                                System.exit(1);
+                            }
                         }
+                        flushConnections();
                     }
-                    hasSharedVotes = true;
+                    rounds.votesShared(roundNumber);
                     sleep(100);
                 }
 
                 //Send Round n>1 votes
-                if (roundNumber > 1 && !majorityVoteSent) {
+                if (roundNumber > 1 && !rounds.majorityVoteSent) {
                     System.out.println(listenPort + ": RUNNING VOTE ROUND " + roundNumber);
-                    String votes = generateCombinedVotes();
+                    MessageWriter.Encoded votes = MessageWriter.encode(generateCombinedVotes());
 
-                    for (Thread thread : participantsLowerPort) {
-                        ParticipantServerConnection conn = (ParticipantServerConnection) thread;
-                        conn.sendCombinedVotes(votes);
-                    }
+                    //Combined votes too large for a datagram go over TCP instead
+                    if (multicast == null || !multicast.send(votes)) {
+                        for (Thread thread : participantsLowerPort) {
+                            ParticipantServerConnection conn = (ParticipantServerConnection) thread;
+                            conn.sendCombinedVotes(votes);
+                        }
 
-                    for (Thread thread : participantsHigherPort) {
-                        ParticipantClientConnection conn = (ParticipantClientConnection) thread;
-                        conn.sendCombinedVotes(votes);
+                        for (Thread thread : participantsHigherPort) {
+                            ParticipantClientConnection conn = (ParticipantClientConnection) thread;
+                            conn.sendCombinedVotes(votes);
+                        }
+                        flushConnections();
                     }
-                    revoting = false; //If the loop has come back to here, then this *is* the revote loop.
-                    hasSharedVotes = true;
+                    rounds.votesShared(roundNumber); //If the loop has come back to here, then this *is* the revote loop.
                     sleep(500);
                 }
 
+                if (round != null && round.shouldCommit()) {
+                    //Committed before establishWinner(), which blocks on the Coordinator once an OUTCOME is sent
+                    round.votesReceived = rounds.votes.size();
+                    round.votesRequired = rounds.votesRequired;
+                    round.commit();
+                }
+
+                int epoch = restartEpoch;
                 establishWinner();
 
-                if (!majorityVoteSent) {
+                //After a RESTART, the round is the one it gave
+                if (!rounds.majorityVoteSent && restartEpoch == epoch) {
                     roundNumber++;
                 }
             } catch (InterruptedException | SocketException e) {
@@ -152,13 +274,17 @@ public class Participant extends Thread {
         }
     }
 
-    private ServerSocket serverSocket;
-
     private void awaitConnections() {
         try {
-            //Opens ServerSocket used to communicate with participants on lower port numbers
-            if (serverSocket == null) {
-                serverSocket = new ServerSocket(listenPort);
+            //Joins the multicast group before connecting to peers, so every participant has joined before round 1
+            String multicastGroup = System.getProperty("consensus.multicast");
+            if (multicastGroup != null && multicast == null) {
+                try {
+                    multicast = new ParticipantMulticastConnection(multicastGroup);
+                    multicast.start();
+                } catch (IOException | IllegalArgumentException e) {
+                    System.out.println(listenPort + ": Unable to join multicast group " + multicastGroup + ", falling back to TCP: " + e);
+                }
             }
 
             //Opens server sockets first.
@@ -169,7 +295,7 @@ public class Participant extends Thread {
                     participantsLowerPort.add(thread);
                     thread.start();
                     participantsConnected = participantsHigherPort.size() + participantsLowerPort.size();
-                    votesRequired = participantsConnected + 1;
+                    rounds.votesRequired = participantsConnected + 1;
                 } else if (participant == listenPort) {
                     throw new ParticipantConfigurationException(listenPort + ": Participant has same port as another participant: " + participant);
                 }
@@ -177,19 +303,23 @@ public class Participant extends Thread {
             Thread.sleep(100);
 
             //Then the client sockets after
+            clientsConnected = new CountDownLatch((int) otherParticipants.stream().filter(participant -> participant > listenPort).count());
             for (int participant : otherParticipants) {
                 //If the participant we're connecting to is at a lower port, this participant is the server.
                 if (participant > listenPort) {
-                    Thread thread = new ParticipantClientConnection(participant);
+                    ParticipantClientConnection thread = new ParticipantClientConnection(participant);
+                    if (!thread.serverConn) {
+                        continue; //Left the membership before a connection could be made
+                    }
                     participantsHigherPort.add(thread);
                     thread.start();
                     participantsConnected = participantsHigherPort.size() + participantsLowerPort.size();
-                    votesRequired = participantsConnected + 1;
+                    rounds.votesRequired = participantsConnected + 1;
                 } else if (participant == listenPort) {
                     throw new ParticipantConfigurationException(listenPort + ": Participant has same port as another participant: " + participant);
                 }
             }
-        } catch (ParticipantConfigurationException | IOException | InterruptedException e) {
+        } catch (ParticipantConfigurationException | InterruptedException e) {
             e.printStackTrace();
         }
     }
@@ -202,12 +332,106 @@ public class Participant extends Thread {
         System.out.println(listenPort + ": Enabling timeouts for participants as connections have been established");
         for (Thread connThread : participantsHigherPort) {
             ParticipantClientConnection conn = (ParticipantClientConnection) connThread;
-            conn.setTimeout();
+            conn.setTimeout(timeout);
         }
 
         for (Thread connThread : participantsLowerPort) {
             ParticipantServerConnection conn = (ParticipantServerConnection) connThread;
-            conn.setTimeout();
+            conn.setTimeout(timeout);
+        }
+    }
+
+    /**
+     * Exchanges HELLO <port> <SHM|TCP> over a newly made peer connection. If both participants are on this host and can
+     * use shared memory, the returned link holds the rings the connection should use instead of the socket.
+     * @throws IOException Exception thrown if there is an issue with the socket connection
+     */
+    private SharedMemoryRing.Link exchangeHello(Socket socket, MessageReader in, MessageWriter out) throws IOException {
+        boolean sharedMemory = SharedMemoryRing.isAvailable(socket);
+        //Random rather than time based, so two participants (or two runs) can never pick the same file name
+        UUID ringId = UUID.randomUUID();
+        out.println("HELLO " + listenPort + (sharedMemory ? " SHM " + ringId : " TCP"));
+        out.flush();
+        if (!in.next() || !in.tokenEquals(0, MessageReader.HELLO)) {
+            throw new IOException("Expected HELLO from connected participant");
+        }
+        int peerPort = in.intToken(1);
+        if (sharedMemory && in.tokenEquals(2, MessageReader.SHM)) {
+            UUID peerRingId = UUID.fromString(in.token(3)); //Also rejects anything that isn't safe in a file name
+            SharedMemoryRing.Link link = new SharedMemoryRing.Link(peerPort,
+                    SharedMemoryRing.create(listenPort, peerPort, ringId), SharedMemoryRing.open(peerPort, listenPort, peerRingId, timeout));
+            link.setTimeout(timeout);
+            link.watch(socket);
+            System.out.println(listenPort + ": Using shared memory for connection to participant " + peerPort);
+            return link;
+        }
+        return new SharedMemoryRing.Link(peerPort, null, null);
+    }
+
+    /**
+     * Asks a peer that has been quiet for the timeout to reply with PONG, if it doesn't within another timeout the
+     * connection is treated as failed
+     */
+    private static void ping(MessageWriter out) {
+        out.println("PING");
+        out.flush();
+    }
+
+    /**
+     * Answers PING with PONG, and ignores PONG (receiving anything resets the connection's timeout)
+     * @return Whether the message was PING or PONG, rather than one for receiveMessage()
+     */
+    private boolean keepalive(MessageReader message, MessageWriter out) {
+        if (message.tokenEquals(0, MessageReader.PING)) {
+            out.println("PONG");
+            out.flush();
+            return true;
+        }
+        return message.tokenEquals(0, MessageReader.PONG);
+    }
+
+    /**
+     * Wakes the thread reading from a peer connection, which sees it as the connection closing
+     */
+    private static void interruptRead(Socket socket, SharedMemoryRing.Link link) {
+        if (link != null && link.isSharedMemory()) {
+            link.inbound.abort();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies any scripted latency, drops and partitions to messages sent through this writer
+     */
+    private MessageWriter injectFaults(MessageWriter writer, int toPort) {
+        return faults == null ? writer : faults.wrap(writer, toPort);
+    }
+
+    /**
+     * Flushes the votes buffered for every peer, called once at the end of each round rather than after every message
+     */
+    private void flushConnections() {
+        for (Thread connThread : participantsLowerPort) {
+            ((ParticipantServerConnection) connThread).flush();
+        }
+        for (Thread connThread : participantsHigherPort) {
+            ((ParticipantClientConnection) connThread).flush();
+        }
+    }
+
+    /**
+     * Waits for votes queued to every peer to be sent, before simulating a failure that must happen after sharing them
+     */
+    private void awaitSent() {
+        for (Thread connThread : participantsLowerPort) {
+            ((ParticipantServerConnection) connThread).awaitSent();
+        }
+        for (Thread connThread : participantsHigherPort) {
+            ((ParticipantClientConnection) connThread).awaitSent();
         }
     }
 
@@ -231,20 +455,10 @@ public class Participant extends Thread {
      */
     private void establishWinner() {
         //If we haven't had votes from every connected participant, we need another round of voting (unless the timeout has elapsed).
-        if (roundNumber > 1 && participantVotes.size() < votesRequired) {
+        if (rounds.votesMissing(roundNumber)) {
             //Logs the time the participant's vote was first missing, if it remains missing for the timeout period, we stop expecting to receive it
-            for (Integer participant : otherParticipants) {
-                if (!participantVotes.keySet().contains(participant)) {
-                    if (timeVoteMissing.containsKey(participant)) {
-                        if (System.currentTimeMillis() - timeVoteMissing.get(participant) > (timeout * 0.75)) { //Don't wait for the full timeout period in case we still have established connections to other participants that have been left waiting too.
-                            System.out.println(listenPort + ": Vote from Participant " + participant + " has been absent for more than the timeout period. Proceeding without that participant's vote.");
-                            votesRequired--;
-                            timeVoteMissing.remove(participant);
-                        }
-                    } else {
-                        timeVoteMissing.put(participant, System.currentTimeMillis());
-                    }
-                }
+            for (Integer participant : rounds.giveUpMissingVotes(otherParticipants, System.currentTimeMillis(), timeout)) {
+                System.out.println(listenPort + ": Vote from Participant " + participant + " has been absent for more than the timeout period. Proceeding without that participant's vote.");
             }
             revote(revoteReason.INCOMPLETE);
         }
@@ -252,55 +466,55 @@ public class Participant extends Thread {
         //Ensures two participant connections don't enter establishWinner() simultaneously and send duplicate votes
         //to the Coordinator
         synchronized (this) {
-            if (participantVotes.size() >= votesRequired && !revoting && !majorityVoteSent && hasSharedVotes && roundNumber > 1 || participantsConnected == 0) {
+            if (rounds.readyForOutcome(roundNumber, participantsConnected == 0)) {
                 //If failure condition 2 is set, fail here to ensure step 5 does not complete
                 if (failureCond == failureCondition.AFTER) {
+                    awaitSent();
                     System.out.println(listenPort + ": INITIATING FAILURE CONDITION 2");
                     System.exit(1);
                 }
 
-                System.out.print(listenPort + ": OVERALL VOTES: ");
-                for (Map.Entry<Integer, String> vote : participantVotes.entrySet()) {
-                    System.out.print(vote.getKey() + " " + vote.getValue() + " ");
-                }
-                System.out.println();
-
-                //Establish winning vote
-                Map<String, Integer> votesCount = new HashMap<>();
-                for (String vote : participantVotes.values()) {
+                System.out.println(rounds.votes.appendTo(new StringBuilder().append(listenPort).append(": OVERALL VOTES: ")));
 
-                    int count = votesCount.getOrDefault(vote, 0);
-                    votesCount.put(vote, count + 1);
+                if (ballot != null) {
+                    tallyBallot();
+                    return;
                 }
 
-                int maxVotes = (Collections.max(votesCount.values()));  //Find the maximum vote for any option
-                boolean isMajorityVote = false;
-                //Ensures we have a majority vote
-                if (maxVotes * 2 > participantVotes.size()) {
-                    isMajorityVote = true;
-                }
-                for (Map.Entry<String, Integer> entry : votesCount.entrySet()) {
-                    if (entry.getValue() == maxVotes) {
-                        majorityOptions.add(entry.getKey());     //Add any option matching the maximum vote to the list (this will result in either 1 outcome, or tied outcomes)
-                    }
+                //Establish winning vote
+                RoundState.Tally tally;
+                synchronized (rounds) {
+                    tally = rounds.tally();
                 }
+                Map<String, Integer> votesCount = tally.votesCount;
+                majorityOptions.addAll(tally.majorityOptions); //The winner, or the options RESTART revotes between
 
                 try {
-                    if (majorityOptions.size() == 1 && !majorityVoteSent && isMajorityVote) {
-                        majorityVoteSent = true;
+                    if (tally.winner != null && !rounds.majorityVoteSent) {
+                        rounds.majorityVoteSent = true;
                         running = false; //We're done now, so no further loops are required.
                         System.out.println(listenPort + ": MAJORITY VOTE FOUND: " + majorityOptions.get(0));
-                        out.println("OUTCOME " + majorityOptions.get(0) + " " + participantVotes.keySet());
+                        lastOutcome = "OUTCOME " + restartEpoch + " " + roundNumber + " " + majorityOptions.get(0) + " " + rounds.votes.ports();
+                        out.println(lastOutcome);
+                        out.flush();
+                        ConsensusEvents.outcomeSent(majorityOptions.get(0), rounds.votes.size(), listenPort, restartEpoch, roundNumber);
 
                         //As a majority was found, we can stop now.
                         try {
-                            in.readLine(); //Blocks here until the coordinator closes the connection, THEN that SocketException triggers the Participant to close :)
+                            //Blocks here until the coordinator sends DECIDED or closes the connection, then the Participant closes :)
+                            //DECIDED matches our majority vote, as the Coordinator only decides once every outcome agrees
+                            String message;
+                            do {
+                                message = readCoordinator();
+                            } while (message != null && !message.startsWith("DECIDED "));
                         } catch (SocketException e) {
-                            System.exit(0);
+                            //Closed as expected
                         }
-                    } else if (!majorityVoteSent) {
-                        majorityVoteSent = true;
-                        if (majorityOptions.size() > 1) {
+                        outcome.complete(majorityOptions.get(0));
+                        shutdown();
+                    } else if (!rounds.majorityVoteSent) {
+                        rounds.majorityVoteSent = true;
+                        if (tally.tied) {
                             System.out.println(listenPort + ": TIE BETWEEN: " + majorityOptions.toString());
                             for (Map.Entry<String, Integer> entry : votesCount.entrySet()) {
                                 System.out.println(listenPort + ": Option: " + entry.getKey() + ", Votes: " + entry.getValue()) ;
@@ -310,11 +524,11 @@ public class Participant extends Thread {
                             for (Map.Entry<String, Integer> entry : votesCount.entrySet()) {
                                 System.out.println(listenPort + ": Option: " + entry.getKey() + ", Votes: " + entry.getValue()) ;
                             }
-                            //RESTART will use any options voted for in this round
-                            majorityOptions.clear();
-                            majorityOptions.addAll(votesCount.keySet());
                         }
-                        out.println("OUTCOME null " + participantVotes.keySet());
+                        lastOutcome = "OUTCOME " + restartEpoch + " " + roundNumber + " null " + rounds.votes.ports();
+                        out.println(lastOutcome);
+                        out.flush();
+                        ConsensusEvents.outcomeSent(null, rounds.votes.size(), listenPort, restartEpoch, roundNumber);
                         awaitRestart();
                         //We didn't reach a majority, so participant continues to run awaiting further instructions from Coordinator
                     }
@@ -327,50 +541,112 @@ public class Participant extends Thread {
 
     }
 
+    /**
+     * establishWinner() for a batch of proposals. Each proposal is tallied separately, and OUTCOME carries the packed
+     * winners once every proposal has a majority, otherwise it's null and a RESTART revotes the undecided proposals.
+     * Must be called holding the lock on this, with every vote received.
+     */
+    private void tallyBallot() {
+        if (rounds.majorityVoteSent) {
+            return; //Reached again as connections close after the OUTCOME
+        }
+        synchronized (rounds) {
+            ballotChoices = ballot.tally(rounds.votes.values());
+        }
+        String decision = Ballot.decision(ballotChoices);
+        rounds.majorityVoteSent = true;
+        try {
+            if (decision != null) {
+                running = false;
+                System.out.println(listenPort + ": MAJORITY VOTE FOUND: " + ballot.decode(decision));
+                lastOutcome = "OUTCOME " + restartEpoch + " " + roundNumber + " " + decision + " " + rounds.votes.ports();
+                out.println(lastOutcome);
+                out.flush();
+                ConsensusEvents.outcomeSent(decision, rounds.votes.size(), listenPort, restartEpoch, roundNumber);
+
+                String message;
+                do {
+                    message = readCoordinator();
+                } while (message != null && !message.startsWith("DECIDED "));
+                outcome.complete(decision);
+                shutdown();
+            } else {
+                int undecided = 0;
+                for (String proposalChoices : ballotChoices) {
+                    if (proposalChoices.length() > 1) {
+                        undecided++;
+                    }
+                }
+                System.out.println(listenPort + ": NO MAJORITY IN " + undecided + " OF " + ballot.size() + " PROPOSALS, choices: " + ballotChoices);
+                lastOutcome = "OUTCOME " + restartEpoch + " " + roundNumber + " null " + rounds.votes.ports();
+                out.println(lastOutcome);
+                out.flush();
+                ConsensusEvents.outcomeSent(null, rounds.votes.size(), listenPort, restartEpoch, roundNumber);
+                awaitRestart();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Called by a connection instance to instigate another vote if a participant connection fails
      */
     private void revote(revoteReason reason) {
         if (reason == revoteReason.FAILURE && !failed) {
-            if (participantVotes.size() < votesRequired) {
+            if (rounds.peerFailed()) {
+                ConsensusEvents.revote(reason, listenPort, restartEpoch, roundNumber);
                 System.out.println(listenPort + ": Initiating revote (Participant failure before all votes propagated)");
-                revoting = true;
-                hasSharedVotes = false;
             }
         } else if (reason == revoteReason.INCOMPLETE && !failed) {
             // This is required to handle the scenario where a vote was received from another participant that was not
             // complete. It ensures another round of votes happen to ensure complete sets of votes propagate fully
-            revoting = true;
-            hasSharedVotes = false;
+            ConsensusEvents.revote(reason, listenPort, restartEpoch, roundNumber);
+            rounds.revote();
             System.out.println(listenPort + ": Initiating revote (Incomplete votes)");
         } else if (reason == revoteReason.PROPAGATE && !failed) {
             //This is to handle the scenario where a vote is received from a participant that had not yet voted.
             //Simply flags/ensures another round happens to allow the vote to propagate. Without this some rare edge cases meant
             //votes didn't propagate properly sometimes.
-            revoting = true;
-            hasSharedVotes = false;
+            ConsensusEvents.revote(reason, listenPort, restartEpoch, roundNumber);
+            rounds.revote();
         }
     }
 
     private void sendJoin() {
         out.println("JOIN " + listenPort);
+        out.flush();
     }
 
     /**
-     * Awaits the DETAILS [<port>] message from the Coordinator and stores other participants ports
+     * Awaits the DETAILS <version> [<port>] message from the Coordinator and stores other participants ports. The list is
+     * the same for every participant, so it includes this participant's own port
      * @throws IOException Exception thrown if there is an issue with the socket connection
      */
     private void awaitDetails() throws IOException {
         boolean detailsReceived = false;
         while (!detailsReceived) {
-            String details = in.readLine();
+            String details = readCoordinator();
+            if (details == null) {
+                throw new SocketException("Coordinator closed the connection before sending DETAILS");
+            }
             String[] detailsElem = details.split(" ");
-            if (detailsElem[0].equals("DETAILS")) {
+            if (detailsElem[0].equals("OBSERVE")) {
+                System.out.println(listenPort + ": Joined after voting started, observing the decision");
+                observing = true;
+                return;
+            } else if (detailsElem[0].equals("DETAILS")) {
                 detailsReceived = true;
-                otherParticipants = new ArrayList<>();
-                for (int i=1; i<detailsElem.length; i++) {
-                    otherParticipants.add(Integer.parseInt(detailsElem[i]));
+                ConsensusEvents.controlMessage("DETAILS", listenPort, restartEpoch, roundNumber);
+                membershipVersion = Integer.parseInt(detailsElem[1]);
+                List<Integer> others = new ArrayList<>();
+                for (int i=2; i<detailsElem.length; i++) {
+                    int port = Integer.parseInt(detailsElem[i]);
+                    if (port != listenPort) {
+                        others.add(port);
+                    }
                 }
+                otherParticipants = others;
                 System.out.println(listenPort + ": Other participants: " + otherParticipants.toString());
             } else {
                 System.err.println(listenPort + ": Message received in awaitDetails() that was not 'DETAILS': " + detailsElem[0]);
@@ -378,101 +654,426 @@ public class Participant extends Thread {
         }
     }
 
+    /**
+     * Reads the next message from the Coordinator, recording it if messages are being traced. If the Coordinator is
+     * lost (closed, or no HEARTBEAT within the timeout) before a decision and a standby Coordinator is known, reconnects
+     * to the standby and carries on reading.
+     * @return The message, or null if the Coordinator closed the connection
+     * @throws IOException Exception thrown if there is an issue with the socket connection
+     */
+    private String readCoordinator() throws IOException {
+        return readCoordinator(true);
+    }
+
+    /**
+     * @param block false to only read messages that have already arrived, returning null (without failing over) if
+     *              there are none left
+     */
+    private String readCoordinator(boolean block) throws IOException {
+        if (heldMessage != null) {
+            String message = heldMessage;
+            heldMessage = null;
+            return message;
+        }
+        while (true) {
+            if (!block && !in.ready()) {
+                return null;
+            }
+            String message;
+            try {
+                message = in.readLine();
+            } catch (SocketTimeoutException e) {
+                System.out.println(listenPort + ": No heartbeat from the Coordinator at " + coordinatorPort + " for " + Coordinator.HEARTBEAT_TIMEOUT + "ms");
+                message = null;
+            } catch (SocketException e) {
+                message = null; //Connection reset by a Coordinator that crashed
+            }
+            if (message == null) {
+                if (!block || standbyPort == -1 || outcome.isDone()) {
+                    return null;
+                }
+                failover();
+            } else {
+                MessageTrace.received(listenPort, coordinatorPort, message);
+                if (message.equals("HEARTBEAT")) {
+                    continue;
+                } else if (message.startsWith("STANDBY ")) {
+                    standbyPort = Integer.parseInt(message.substring(8));
+                } else if (message.startsWith("MEMBERS ")) {
+                    applyMembershipDelta(message);
+                } else {
+                    return message;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies MEMBERS <version> <+port or -port> from the Coordinator, sent when a participant fails or rejoins after
+     * DETAILS. Deltas at or below the version already applied are ignored.
+     */
+    private void applyMembershipDelta(String message) {
+        String[] messageParts = message.split(" ");
+        int version = Integer.parseInt(messageParts[1]);
+        if (otherParticipants == null || version <= membershipVersion) {
+            return;
+        }
+        membershipVersion = version;
+        Integer port = Integer.parseInt(messageParts[2].substring(1));
+        if (port == listenPort) {
+            return;
+        }
+        List<Integer> others = new ArrayList<>(otherParticipants);
+        if (messageParts[2].charAt(0) == '-') {
+            System.out.println(listenPort + ": Coordinator reports participant " + port + " has failed");
+            others.remove(port);
+            //Stop waiting for its vote, unless it's already counted or been given up on
+            synchronized (rounds) {
+                if (connectionsMade) {
+                    rounds.memberRemoved(port);
+                }
+            }
+        } else if (!others.contains(port)) {
+            if (connectionsMade && !connectedTo(port)) {
+                //Peers are only connected to before round 1, so one without a connection can't be waited on
+                System.out.println(listenPort + ": Coordinator reports participant " + port + " has rejoined, but it isn't connected to this participant");
+                return;
+            }
+            System.out.println(listenPort + ": Coordinator reports participant " + port + " has rejoined");
+            others.add(port);
+            synchronized (rounds) {
+                rounds.memberRejoined(port);
+            }
+        }
+        otherParticipants = others;
+    }
+
+    /**
+     * Applies any MEMBERS deltas the Coordinator has sent, without blocking. Anything else read is held for the next
+     * readCoordinator(). A lost Coordinator is left to be noticed by the next blocking read.
+     */
+    private void readPendingMembership() {
+        try {
+            if (heldMessage == null) {
+                heldMessage = readCoordinator(false);
+            }
+        } catch (IOException e) {
+            //Handled when the Coordinator is next read
+        }
+    }
+
+    /**
+     * @return Whether there is an open connection to the participant at the given port
+     */
+    private boolean connectedTo(int port) {
+        for (Thread thread : new ArrayList<>(participantsHigherPort)) {
+            ParticipantClientConnection conn = (ParticipantClientConnection) thread;
+            if (conn.serverConn && conn.participantServerPort == port) {
+                return true;
+            }
+        }
+        for (Thread thread : new ArrayList<>(participantsLowerPort)) {
+            ParticipantServerConnection conn = (ParticipantServerConnection) thread;
+            if (!conn.connectionLost && conn.link != null && conn.link.peerPort == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reconnects to the standby Coordinator after the Coordinator is lost. A participant that hasn't been given the vote
+     * options yet joins again, otherwise it sends REJOIN <port> <epoch> and repeats its last OUTCOME
+     * @throws IOException Exception thrown if the standby can't be reached
+     */
+    private void failover() throws IOException {
+        System.out.println(listenPort + ": Lost Coordinator at " + coordinatorPort + ", failing over to standby at " + standbyPort);
+        coordinatorSocket.close();
+        coordinatorPort = standbyPort;
+        standbyPort = -1; //The standby has no standby of its own
+        connectCoordinator();
+        if (chosenVote == null) {
+            sendJoin();
+            return;
+        }
+        out.println("REJOIN " + listenPort + " " + restartEpoch);
+        if (lastOutcome != null) {
+            out.println(lastOutcome);
+        }
+        out.flush();
+    }
+
+    /**
+     * Waits for DECIDED <outcome> from the Coordinator, for a participant that joined too late to vote
+     * @throws IOException Exception thrown if there is an issue with the socket connection
+     */
+    private void observe() throws IOException {
+        String message;
+        while ((message = readCoordinator()) != null) {
+            if (message.startsWith("DECIDED ")) {
+                System.out.println(listenPort + ": Observed decision: " + message.substring(8));
+                outcome.complete(message.substring(8));
+                break;
+            }
+        }
+        shutdown();
+    }
+
+    /**
+     * STAR voting mode: sends VOTE <epoch> <round> <port> <vote> to the Coordinator, which tallies every participant's
+     * vote and replies with DECIDED <outcome>, or RESTART <epoch> <round> [<option>] to vote again between the options given
+     * @throws IOException Exception thrown if there is an issue with the socket connection
+     */
+    private void voteThroughCoordinator() throws IOException {
+        while (true) {
+            //With no peers to share with, failure condition 1 fails before the vote is sent and 2 fails just after
+            if (failureCond == failureCondition.DURING) {
+                System.out.println(listenPort + ": INITIATING FAILURE CONDITION 1");
+                System.exit(1);
+            }
+            System.out.println(listenPort + ": Sending vote to Coordinator: " + chosenVote);
+            lastOutcome = "VOTE " + restartEpoch + " " + roundNumber + " " + listenPort + " " + chosenVote;
+            out.println(lastOutcome);
+            out.flush();
+            if (failureCond == failureCondition.AFTER) {
+                System.out.println(listenPort + ": INITIATING FAILURE CONDITION 2");
+                System.exit(1);
+            }
+
+            String message;
+            try {
+                do {
+                    message = readCoordinator();
+                } while (message != null && !message.startsWith("DECIDED ") && !message.startsWith("RESTART "));
+            } catch (SocketException e) {
+                message = null;
+            }
+            if (message == null) {
+                shutdown();
+                return;
+            }
+            String[] messageParts = message.split(" ");
+            if (messageParts[0].equals("DECIDED")) {
+                System.out.println(listenPort + ": Coordinator decided: " + messageParts[1]);
+                outcome.complete(messageParts[1]);
+                shutdown();
+                return;
+            }
+            restartEpoch = Integer.parseInt(messageParts[1]);
+            roundNumber = Integer.parseInt(messageParts[2]);
+            ConsensusEvents.controlMessage("RESTART", listenPort, restartEpoch, roundNumber);
+            List<String> restartOptions = new ArrayList<>(Arrays.asList(messageParts).subList(3, messageParts.length));
+            if (ballot != null) {
+                //RESTART lists the options still in contention for each proposal
+                chosenVote = ballot.randomVote(restartOptions);
+            } else {
+                Collections.shuffle(restartOptions);
+                chosenVote = restartOptions.get(0);
+            }
+            System.out.println(listenPort + ": Restarting with options " + restartOptions + ", selected: " + chosenVote);
+        }
+    }
+
     private void awaitOptions() throws IOException {
         boolean optionsReceived = false;
+        boolean isBallot = false;
         while (!optionsReceived) {
-            String options = in.readLine();
+            String options = readCoordinator();
+            if (options == null) {
+                throw new SocketException("Coordinator closed the connection before sending VOTE_OPTIONS");
+            }
             String[] optionsElem = options.split(" ");
-            if (optionsElem[0].equals("VOTE_OPTIONS")) {
+            if (optionsElem[0].equals("STAR")) {
+                starVoting = true;
+            } else if (optionsElem[0].equals("BALLOT")) {
+                isBallot = true;
+            } else if (optionsElem[0].equals("VOTE_OPTIONS")) {
                 optionsReceived = true;
+                ConsensusEvents.controlMessage("VOTE_OPTIONS", listenPort, restartEpoch, roundNumber);
                 voteOptions.addAll(Arrays.asList(optionsElem).subList(1, optionsElem.length));
                 System.out.print(listenPort + ": Vote Options: " + voteOptions.toString());
             }
         }
+        //Parsed before shuffling, as a ballot's proposals are in the order the Coordinator sent them
+        ballot = isBallot ? new Ballot(voteOptions) : null;
         //Picks a random vote
         Collections.shuffle(voteOptions);
-        chosenVote = voteOptions.get(0);
-        participantVotes.put(listenPort, chosenVote);
+        voteOptionBytes = new byte[voteOptions.size()][];
+        for (int i = 0; i < voteOptions.size(); i++) {
+            voteOptionBytes[i] = voteOptions.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        chosenVote = ballot == null ? voteOptions.get(0) : ballot.randomVote();
+        synchronized (rounds) {
+            rounds.votes.setMembers(members());
+            rounds.votes.put(listenPort, chosenVote);
+        }
         System.out.print(", selected: " + chosenVote);
         System.out.println();
     }
 
+    /**
+     * Awaits the RESTART <epoch> <round> message from the Coordinator, then resets voting state for the new epoch
+     * @throws IOException Exception thrown if there is an issue with the socket connection
+     */
     private void awaitRestart() throws IOException {
-        String message = in.readLine();
-        if (message.equals("RESTART")) {
-            System.out.println(listenPort + ": Restarting with previous tied/non-majority options: " + majorityOptions.toString());
-            Collections.shuffle(majorityOptions);
-            chosenVote = majorityOptions.get(0);
-            majorityVoteSent = false;
-            hasSharedVotes = false;
+        String message = readCoordinator();
+        if (message == null) {
+            outcome.completeExceptionally(new SocketException("Coordinator closed the connection without a RESTART"));
+            shutdown();
+            return;
+        }
+        String[] messageParts = message.split(" ");
+        if (messageParts[0].equals("RESTART")) {
+            if (ballot != null) {
+                //Decided proposals keep their winner, the rest are revoted between the options still in contention
+                chosenVote = ballot.randomVote(ballotChoices);
+            } else {
+                System.out.println(listenPort + ": Restarting with previous tied/non-majority options: " + majorityOptions.toString());
+                Collections.shuffle(majorityOptions);
+                chosenVote = majorityOptions.get(0);
+            }
             majorityOptions.clear();
-            participantVotes.clear();
-            timeVoteMissing.clear();
-            participantVotes.put(listenPort, chosenVote);
-            votesRequired = participantsConnected + 1; //If we're doing a restart, we can't expect a failed participant's vote to propagate (as we did before).
-            roundNumber = 1;
+            synchronized (rounds) {
+                restartEpoch = Integer.parseInt(messageParts[1]);
+                roundNumber = Integer.parseInt(messageParts[2]);
+                ConsensusEvents.controlMessage("RESTART", listenPort, restartEpoch, roundNumber);
+                rounds.restart(members(), listenPort, chosenVote, Math.min(participantsConnected, otherParticipants.size()));
+            }
             System.out.println(listenPort + ": Selected random option: " + chosenVote);
         }
     }
 
+    /**
+     * Handles a message received from another participant
+     * @param message Reader positioned on the received message, or null if the connection was closed
+     * @param port Port of the participant the message came from, if known
+     */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-    private boolean receiveMessage(String receivedMessage, Integer port) throws Coordinator.UnknownMessageException {
-        if (receivedMessage == null) {
+    private boolean receiveMessage(MessageReader message, Integer port) throws Coordinator.UnknownMessageException {
+        if (message == null) {
             System.out.println(listenPort + ": Connected participant connection closed unexpectedly");
             revote(Participant.revoteReason.FAILURE);
             return false;
         } else {
-            String[] messageParts = receivedMessage.split(" ");
-            if (messageParts[0].equals("VOTE")) {//If message has 3 parts, eg: VOTE 12345 A, then it is a vote from round 1
-                //Otherwise it's a vote from a later round
-                synchronized (participantVotes) {
-                    if (port != null) {
-                        System.out.println(listenPort + ": Vote received in round " + roundNumber + ": " + receivedMessage + " from port " + port);
-                    } else {
-                        System.out.println(listenPort + ": Vote received in round " + roundNumber + ": " + receivedMessage);
+            if (MessageTrace.isEnabled()) {
+                MessageTrace.received(listenPort, port == null ? -1 : port, message.toString());
+            }
+            if (message.tokenEquals(0, MessageReader.VOTE)) {//VOTE <epoch> <round> followed by one (round 1) or more (round n>1) <port> <vote> pairs
+                int epoch = message.intToken(1);
+                int round = message.intToken(2);
+                synchronized (rounds) {
+                    if (epoch < restartEpoch) {
+                        //Vote from before the last RESTART, its options may no longer be valid so it's discarded
+                        System.out.println(listenPort + ": Discarding stale vote from epoch " + epoch + ": " + message);
+                        return true;
+                    } else if (epoch > restartEpoch) {
+                        //Sender already received RESTART, hold its vote until we have too
+                        for (int i=3; i+1<message.tokenCount(); i += 2) {
+                            rounds.nextEpochVotes.put(message.intToken(i), knownOption(message, i + 1));
+                        }
+                        return true;
                     }
 
-                    for (int i=1; i<messageParts.length; i += 2) {
+                    if (LOG_VOTES) {
+                        System.out.println(listenPort + ": Vote received in round " + roundNumber + ": " + message + (port != null ? " from port " + port : ""));
+                    }
+
+                    for (int i=3; i+1<message.tokenCount(); i += 2) {
                         //If we didn't previously have any votes from this participant, we need to set flag to ensure another round
-                        //of votes occurs, to ensure the vote propagates.
-                        if (!participantVotes.containsKey(Integer.parseInt(messageParts[i]))) {
+                        //of votes occurs, to ensure the vote propagates
+                        if (rounds.voteReceived(message.intToken(i), knownOption(message, i + 1), round, roundNumber)) {
                             revote(revoteReason.PROPAGATE);
                         }
-                        participantVotes.put(Integer.parseInt(messageParts[i]), messageParts[i + 1]);
                     }
                 }
 
                 establishWinner();
             } else {
-                throw new Coordinator.UnknownMessageException(messageParts[0]);
+                throw new Coordinator.UnknownMessageException(message.toString());
             }
 
             return true;
         }
     }
 
-    private String generateCombinedVotes() {
-        StringBuilder voteText = new StringBuilder("VOTE ");
+    /**
+     * @return This participant and every other member, which get a slot each in the vote tables
+     */
+    private List<Integer> members() {
+        List<Integer> members = new ArrayList<>(otherParticipants);
+        members.add(listenPort);
+        return members;
+    }
 
-        synchronized (participantVotes) {
-            for (Map.Entry<Integer, String> vote : participantVotes.entrySet()) {
-                voteText.append(vote.getKey()).append(" ").append(vote.getValue()).append(" ");
+    /**
+     * Returns the matching String from voteOptions for token i, so storing a vote doesn't create a new String per message.
+     * A linear scan, but over the options rather than the participants, so a combined VOTE stays linear in its length.
+     * A packed ballot vote is never one of the options, but is repeated in every combined VOTE, so it's looked up in a
+     * cache of the votes already received instead. Called holding rounds, which guards the cache.
+     */
+    private String knownOption(MessageReader message, int i) {
+        if (ballot != null) {
+            int slot = message.tokenHash(i) & (PACKED_VOTE_SLOTS - 1);
+            if (packedVoteBytes[slot] == null || !message.tokenEquals(i, packedVoteBytes[slot])) {
+                //First time this vote has been seen, or it shares a slot with another, which it replaces
+                packedVotes[slot] = message.token(i);
+                packedVoteBytes[slot] = packedVotes[slot].getBytes(StandardCharsets.UTF_8);
             }
+            return packedVotes[slot];
+        }
+        for (int j = 0; j < voteOptionBytes.length; j++) {
+            if (message.tokenEquals(i, voteOptionBytes[j])) {
+                return voteOptions.get(j);
+            }
+        }
+        return message.token(i);
+    }
+
+    private String generateCombinedVotes() {
+        StringBuilder voteText = new StringBuilder("VOTE ").append(restartEpoch).append(" ").append(roundNumber).append(" ");
+
+        synchronized (rounds) {
+            rounds.votes.appendTo(voteText);
         }
         return voteText.toString();
     }
 
+    /**
+     * Closes every connection and stops voting. Called once the outcome is known, or to abandon the vote early.
+     */
+    void shutdown() {
+        running = false;
+        outcome.completeExceptionally(new IllegalStateException("Participant shut down before an overall vote was reached"));
+        //Copies, as closing a connection removes it from the list
+        for (Thread connThread : new ArrayList<>(participantsHigherPort)) {
+            ((ParticipantClientConnection) connThread).closeConnection();
+        }
+        for (Thread connThread : new ArrayList<>(participantsLowerPort)) {
+            ((ParticipantServerConnection) connThread).closeConnection();
+        }
+        if (multicast != null) {
+            multicast.closeConnection();
+        }
+        try {
+            serverSocket.close();
+            coordinatorSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void main(String[] args) {
         try {
-            Participant participant = new Participant(args);
-            participant.sendJoin();
-            participant.awaitDetails();
-            participant.awaitOptions();
-            //Makes connections to other participants
+            Participant participant = fromArgs(args);
+            //Joins, then makes connections to other participants and votes
             participant.start();
-
+            participant.outcome().join();
+            System.exit(0);
         } catch (InsufficientArgumentsException | IOException e) {
             e.printStackTrace();
+        } catch (CompletionException e) {
+            System.err.println("Participant finished without an overall vote: " + e.getCause().getMessage());
+            System.exit(1);
         }
     }
 
@@ -481,30 +1082,48 @@ public class Participant extends Thread {
      */
     public class ParticipantClientConnection extends Thread {
         private int participantServerPort;
-        private boolean serverConn;
+        private volatile boolean serverConn;
         private volatile boolean running = true;
+        private boolean awaitingPong = false; //Sent PING after a timeout, only used by this connection's thread
 
         private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+        private SharedMemoryRing.Link link;
+        private OutboundQueue queue;
+        private MessageWriter out;
+        private MessageReader in;
 
         ParticipantClientConnection(int participantServerPort) {
             this.participantServerPort = participantServerPort;
+            try {
+                connect();
+            } finally {
+                clientsConnected.countDown();
+            }
+        }
 
+        private void connect() {
             //This is inside while true in case the connection does not establish to allow retrying.
             while (true) {
                 try {
                     socket = new Socket("localhost", participantServerPort);
                     socket.setSoLinger(true,0);
                     socket.setSoTimeout(timeout);
-                    out = new PrintWriter(socket.getOutputStream(), true);
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    socket.setTcpNoDelay(TCP_NO_DELAY);
+                    out = new MessageWriter(socket.getOutputStream());
+                    in = new MessageReader(socket.getInputStream());
+                    link = exchangeHello(socket, in, out);
+                    if (link.isSharedMemory()) {
+                        out = new MessageWriter(link.outbound.outputStream());
+                        in = new MessageReader(link.inbound.inputStream());
+                    }
+                    queue = new OutboundQueue(out, listenPort + "->" + participantServerPort, this::suspected);
+                    out = MessageTrace.wrap(injectFaults(queue, participantServerPort), listenPort, participantServerPort);
                     serverConn = true;
                     System.out.println(listenPort + ": Client participant " + listenPort + " connected to Server participant: " + participantServerPort);
                     break;
                 } catch (SocketTimeoutException e) {
-                    if (majorityVoteSent) {
-                        System.exit(0);
+                    if (rounds.majorityVoteSent || outcome.isDone()) {
+                        return;
                     }
                     try {
                         System.out.println("Failed to connect Socket to Server Participant within timeout, trying again.");
@@ -514,8 +1133,14 @@ public class Participant extends Thread {
                     }
                     e.printStackTrace();
                 } catch (IOException e) {
-                    if (majorityVoteSent) {
-                        System.exit(0);
+                    if (rounds.majorityVoteSent || outcome.isDone()) {
+                        return;
+                    }
+                    //Connecting happens on the main thread, so it's the one that reads MEMBERS from the Coordinator
+                    readPendingMembership();
+                    if (!otherParticipants.contains(participantServerPort)) {
+                        System.out.println(listenPort + ": Participant at port " + participantServerPort + " has left, no longer connecting to it");
+                        return;
                     }
                     e.printStackTrace();
                 }
@@ -529,20 +1154,32 @@ public class Participant extends Thread {
             while (running && serverConn) {
                 //Waits for a message from the Server
                 try {
-                    if (!receiveMessage(in.readLine(), participantServerPort)) {
+                    MessageReader message = in.next() ? in : null;
+                    awaitingPong = false;
+                    if (message != null && keepalive(message, out)) {
+                        continue;
+                    }
+                    if (!receiveMessage(message, participantServerPort)) {
                         this.closeConnection();
                     }
                 } catch (SocketTimeoutException e) {
+                    if ((rounds.majorityVoteSent || multicast != null) && !failed && !awaitingPong) {
+                        //Peers are expected to be quiet while awaiting RESTART (and throughout when votes are multicast),
+                        //so one that times out is asked to reply before it's treated as failed
+                        awaitingPong = true;
+                        ping(out);
+                        continue;
+                    }
                     System.out.println(listenPort + ": Connection to other Participant at port " + participantServerPort + " timed out.");
                     this.closeConnection();
-                    if (!majorityVoteSent && !failed) {
+                    if (!rounds.majorityVoteSent && !failed) {
                         System.out.println(listenPort + ": A connected participant failed before OUTCOME was sent. Revoting.");
                         revote(Participant.revoteReason.FAILURE);
                     }
                 } catch (SocketException e) {
                     System.out.println(listenPort + ": Connection to other Participant at port " + participantServerPort + " closed.");
                     this.closeConnection();
-                    if (!majorityVoteSent && !failed) {
+                    if (!rounds.majorityVoteSent && !failed) {
                         System.out.println(listenPort + ": A connected participant failed before OUTCOME was sent. Revoting.");
                         revote(Participant.revoteReason.FAILURE);
                     }
@@ -557,17 +1194,33 @@ public class Participant extends Thread {
         }
 
 
-        void sendVotes(String vote) {
+        void sendVotes(MessageWriter.Encoded vote) {
             if (serverConn) {
-                System.out.println(listenPort + ": Sending to " + participantServerPort + ": VOTE " + listenPort + " " + vote);
-                out.println("VOTE " + listenPort + " " + vote);
+                if (LOG_VOTES) {
+                    System.out.println(listenPort + ": Sending to " + participantServerPort + ": " + vote);
+                }
+                out.write(vote);
             }
         }
 
-        void sendCombinedVotes(String votes) {
+        void sendCombinedVotes(MessageWriter.Encoded votes) {
             if (serverConn) {
-                System.out.println(listenPort + ": Sending to " + participantServerPort + ": "  + votes);
-                out.println(votes);
+                if (LOG_VOTES) {
+                    System.out.println(listenPort + ": Sending to " + participantServerPort + ": "  + votes);
+                }
+                out.write(votes);
+            }
+        }
+
+        void flush() {
+            if (serverConn) {
+                out.flush();
+            }
+        }
+
+        void awaitSent() {
+            if (serverConn) {
+                queue.awaitSent(timeout);
             }
         }
 
@@ -575,17 +1228,33 @@ public class Participant extends Thread {
             return this.serverConn;
         }
 
-        void setTimeout() throws SocketException {
+        void setTimeout(int timeout) throws SocketException {
             this.socket.setSoTimeout(timeout);
+            link.setTimeout(timeout);
+        }
+
+        /**
+         * Called on the flushing thread if this peer can't keep up with the votes sent to it. Closing the socket (or
+         * ring) wakes this connection's own thread, which then handles it like a closed connection.
+         */
+        private void suspected() {
+            System.out.println(listenPort + ": Participant at port " + participantServerPort + " is not keeping up with votes, treating it as failed.");
+            interruptRead(socket, link);
         }
 
         /**
          * Used to simulate a participant failing
          */
-        private void closeConnection() {
+        private synchronized void closeConnection() {
+            if (!serverConn) {
+                return; //Already closed, or never connected
+            }
             connectionLost(this);
             serverConn = false;
             running = false;
+            if (link != null && link.isSharedMemory()) {
+                link.outbound.close();
+            }
             try {
                 socket.close();
                 in.close();
@@ -603,10 +1272,13 @@ public class Participant extends Thread {
     public class ParticipantServerConnection extends Thread {
         private ServerSocket serverSocket;
         private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private boolean connectionLost = false;
+        private SharedMemoryRing.Link link;
+        private OutboundQueue queue;
+        private MessageWriter out;
+        private MessageReader in;
+        private volatile boolean connectionLost = false;
         private volatile boolean running = true;
+        private boolean awaitingPong = false; //Sent PING after a timeout, only used by this connection's thread
 
         ParticipantServerConnection(ServerSocket ssock) {
             this.serverSocket = ssock;
@@ -616,9 +1288,17 @@ public class Participant extends Thread {
                     socket = serverSocket.accept();
                     socket.setSoLinger(true,0);
                     socket.setSoTimeout(timeout);
+                    socket.setTcpNoDelay(TCP_NO_DELAY);
                     System.out.println(listenPort + ": Another participant connected to this participant acting as server.");
-                    this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    this.out = new PrintWriter(socket.getOutputStream(), true);
+                    this.in = new MessageReader(socket.getInputStream());
+                    this.out = new MessageWriter(socket.getOutputStream());
+                    this.link = exchangeHello(socket, in, out);
+                    if (link.isSharedMemory()) {
+                        this.out = new MessageWriter(link.outbound.outputStream());
+                        this.in = new MessageReader(link.inbound.inputStream());
+                    }
+                    this.queue = new OutboundQueue(out, listenPort + "->" + link.peerPort, this::suspected);
+                    this.out = MessageTrace.wrap(injectFaults(queue, link.peerPort), listenPort, link.peerPort);
                     break;
                 } catch (SocketTimeoutException e) {
                     try {
@@ -627,6 +1307,12 @@ public class Participant extends Thread {
                         ex.printStackTrace();
                     }
                 } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        //Participant was shut down before this peer connected
+                        connectionLost = true;
+                        running = false;
+                        return;
+                    }
                     e.printStackTrace();
                 }
             }
@@ -637,20 +1323,31 @@ public class Participant extends Thread {
         public void run() {
             while (running) {
                 try {
-                    if (!receiveMessage(in.readLine(), null)) {
+                    MessageReader message = in.next() ? in : null;
+                    awaitingPong = false;
+                    if (message != null && keepalive(message, out)) {
+                        continue;
+                    }
+                    if (!receiveMessage(message, link.peerPort)) {
                         this.closeConnection();
                     }
                 } catch (SocketTimeoutException e) {
+                    if ((rounds.majorityVoteSent || multicast != null) && !failed && !awaitingPong) {
+                        //Peers are expected to be quiet while awaiting RESTART, and throughout when votes are multicast
+                        awaitingPong = true;
+                        ping(out);
+                        continue;
+                    }
                     System.out.println(listenPort + ": Connection to other Participant timed out.");
                     this.closeConnection();
-                    if (!majorityVoteSent && !failed) {
+                    if (!rounds.majorityVoteSent && !failed) {
                         System.out.println(listenPort + ": A connected participant failed before OUTCOME was sent. Triggering revote.");
                         revote(Participant.revoteReason.FAILURE);
                     }
                 } catch (SocketException e) {
                     System.out.println(listenPort + ": Connection to other Participant closed");
                     this.closeConnection();
-                    if (majorityVoteSent && !failed) {
+                    if (!rounds.majorityVoteSent && !failed) {
                         System.out.println(listenPort + ": A connected participant failed before OUTCOME was sent. Triggering revote.");
                         revote(Participant.revoteReason.FAILURE);
                     }
@@ -663,33 +1360,65 @@ public class Participant extends Thread {
             }
         }
 
-        void sendVotes(String vote) {
-            if (!connectionLost && !majorityVoteSent) {
-                System.out.println(listenPort + ": Sending: VOTE " + listenPort + " " + vote);
-                out.println("VOTE " + listenPort + " " + vote);
+        void sendVotes(MessageWriter.Encoded vote) {
+            if (!connectionLost && !rounds.majorityVoteSent) {
+                if (LOG_VOTES) {
+                    System.out.println(listenPort + ": Sending: " + vote);
+                }
+                out.write(vote);
+            }
+        }
+
+        void sendCombinedVotes(MessageWriter.Encoded votes) {
+            if (!connectionLost && !rounds.majorityVoteSent) {
+                if (LOG_VOTES) {
+                    System.out.println(listenPort + ": Sending: " + votes);
+                }
+                out.write(votes);
+            }
+        }
+
+        void flush() {
+            if (!connectionLost) {
+                out.flush();
             }
         }
 
-        void sendCombinedVotes(String votes) {
-            if (!connectionLost && !majorityVoteSent) {
-                System.out.println(listenPort + ": Sending: " + votes);
-                out.println(votes);
+        void awaitSent() {
+            if (!connectionLost) {
+                queue.awaitSent(timeout);
             }
         }
 
-        void setTimeout() throws SocketException {
+        void setTimeout(int timeout) throws SocketException {
             if (!connectionLost) {
                 this.socket.setSoTimeout(timeout);
+                link.setTimeout(timeout);
             }
         }
 
+        /**
+         * Called on the flushing thread if this peer can't keep up with the votes sent to it. Closing the socket (or
+         * ring) wakes this connection's own thread, which then handles it like a closed connection.
+         */
+        private void suspected() {
+            System.out.println(listenPort + ": Participant at port " + link.peerPort + " is not keeping up with votes, treating it as failed.");
+            interruptRead(socket, link);
+        }
+
         /**
          * Used to simulate a participant failing
          */
-        private void closeConnection() {
+        private synchronized void closeConnection() {
+            if (connectionLost) {
+                return; //Already closed, or never connected
+            }
             connectionLost(this);
             connectionLost = true;
             running = false;
+            if (link != null && link.isSharedMemory()) {
+                link.outbound.close();
+            }
             try {
                 socket.close();
                 in.close();
@@ -701,6 +1430,234 @@ public class Participant extends Thread {
     }
 
 
+    /**
+     * Optional transport (enabled with -Dconsensus.multicast=<group>:<port>) that sends each round's votes once to a
+     * multicast group rather than once per peer over TCP. Every datagram carries the sender's port and a sequence number,
+     * a receiver that sees a gap multicasts a NACK and the sender retransmits from its recent history. Each sender also
+     * multicasts its next sequence number every SYNC_INTERVAL, so a lost final datagram is noticed and NACKed too.
+     * Datagrams from ports that aren't members are ignored, so clusters can share a group, and a message too large for
+     * a datagram is left for the caller to send over TCP. Votes are handed to a separate delivery thread, so the
+     * receiving thread never blocks in the vote logic and always answers NACKs.
+     */
+    public class ParticipantMulticastConnection extends Thread {
+        private static final byte DATA = 0;
+        private static final byte NACK = 1;
+        private static final byte SYNC = 2;
+        private static final int HEADER_LENGTH = 9; //type, sender port, sequence number
+        private static final int HISTORY = 64; //Number of sent datagrams kept for retransmission
+        private static final int MAX_DATAGRAM = 65507; //Largest UDP payload over IPv4
+        private static final long SYNC_INTERVAL = 200; //Time in ms between SYNCs, once something has been sent
+
+        private final MulticastSocket socket;
+        private final InetSocketAddress group;
+        private final byte[][] sent = new byte[HISTORY][]; //Recently sent datagrams, indexed by sequence number % HISTORY
+        private int nextSendSeq = 0;
+        private final Map<Integer, Integer> nextReceiveSeq = new HashMap<>(); //Next sequence number expected from each participant
+        private final Map<Integer, TreeMap<Integer, byte[]>> heldBack = new HashMap<>(); //Datagrams received after a gap
+        private final ArrayDeque<byte[]> deliveries = new ArrayDeque<>(); //Datagrams in sequence order, waiting for the delivery thread
+        private final MessageReader reader = new MessageReader(InputStream.nullInputStream()); //Only used by the delivery thread
+        private volatile boolean running = true;
+
+        ParticipantMulticastConnection(String multicastGroup) throws IOException {
+            int separator = multicastGroup.lastIndexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected <group>:<port>");
+            }
+            group = new InetSocketAddress(multicastGroup.substring(0, separator), Integer.parseInt(multicastGroup.substring(separator + 1)));
+            String interfaceName = System.getProperty("consensus.multicastInterface");
+            NetworkInterface networkInterface = interfaceName == null ? null : NetworkInterface.getByName(interfaceName);
+
+            socket = new MulticastSocket(group.getPort());
+            if (networkInterface != null) {
+                socket.setNetworkInterface(networkInterface);
+            }
+            socket.joinGroup(group, networkInterface);
+            System.out.println(listenPort + ": Joined multicast group " + group + " for vote broadcast");
+
+            Thread syncThread = new Thread(this::sendSyncs, "multicast-sync-" + listenPort);
+            syncThread.setDaemon(true);
+            syncThread.start();
+            Thread deliveryThread = new Thread(this::deliverVotes, "multicast-deliver-" + listenPort);
+            deliveryThread.setDaemon(true);
+            deliveryThread.start();
+        }
+
+        @Override
+        public void run() {
+            byte[] data = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            while (running) {
+                try {
+                    packet.setLength(data.length);
+                    socket.receive(packet);
+                    if (packet.getLength() < HEADER_LENGTH) {
+                        continue;
+                    }
+                    ByteBuffer header = ByteBuffer.wrap(data, 0, packet.getLength());
+                    byte type = header.get();
+                    int port = header.getInt();
+                    int seq = header.getInt();
+
+                    if (type == NACK) {
+                        if (port == listenPort) {
+                            retransmit(seq, header.getInt());
+                        }
+                    } else if (port == listenPort || !otherParticipants.contains(port)) {
+                        continue; //Our own datagram, or one from another cluster sharing the group
+                    } else if (type == SYNC) {
+                        //SYNC carries the sender's next sequence number, anything before it that we haven't had was lost
+                        int expected = nextReceiveSeq.getOrDefault(port, 0);
+                        if (seq > expected) {
+                            sendNack(port, expected, seq - 1);
+                        }
+                    } else {
+                        received(port, seq, data, packet.getLength());
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Delivers a datagram in sequence order, holding it back and sending a NACK if earlier datagrams are missing.
+         * Only called on the receiving thread.
+         */
+        private void received(int port, int seq, byte[] data, int length) throws IOException {
+            int expected = nextReceiveSeq.getOrDefault(port, 0);
+            if (seq < expected) {
+                return; //Duplicate or retransmission we no longer need
+            }
+            TreeMap<Integer, byte[]> held = heldBack.computeIfAbsent(port, k -> new TreeMap<>());
+            if (seq > expected) {
+                held.put(seq, Arrays.copyOf(data, length));
+                if (held.size() < HISTORY) {
+                    sendNack(port, expected, seq - 1);
+                    return;
+                }
+                //The sender can't retransmit this far back, combined votes carry everything so skip the gap
+                expected = held.firstKey();
+            } else {
+                deliver(Arrays.copyOf(data, length));
+                expected++;
+            }
+            while (held.containsKey(expected)) {
+                deliver(held.remove(expected));
+                expected++;
+            }
+            nextReceiveSeq.put(port, expected);
+        }
+
+        private void deliver(byte[] datagram) {
+            synchronized (deliveries) {
+                deliveries.add(datagram);
+                deliveries.notify();
+            }
+        }
+
+        /**
+         * Passes delivered datagrams to receiveMessage() in order. Runs on its own thread because the vote logic can block
+         * reading the Coordinator once OUTCOME is sent, and the receiving thread has to keep answering NACKs and SYNCs
+         * meanwhile, or peers still finishing the round can't recover what they lost.
+         */
+        private void deliverVotes() {
+            while (true) {
+                byte[] datagram;
+                synchronized (deliveries) {
+                    try {
+                        while (deliveries.isEmpty() && running) {
+                            deliveries.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    datagram = deliveries.poll();
+                }
+                int port = ByteBuffer.wrap(datagram).getInt(1); //After the type byte
+                if (reader.next(datagram, HEADER_LENGTH, datagram.length - HEADER_LENGTH)) {
+                    try {
+                        receiveMessage(reader, port);
+                    } catch (Coordinator.UnknownMessageException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends a message once to every participant in the group
+         * @return false if the message is too large for a datagram, and has to be sent over TCP instead
+         */
+        synchronized boolean send(MessageWriter.Encoded message) {
+            if (HEADER_LENGTH + message.length() > MAX_DATAGRAM) {
+                System.out.println(listenPort + ": Message of " + message.length() + " bytes is too large to multicast, sending over TCP");
+                return false;
+            }
+            byte[] datagram = new byte[HEADER_LENGTH + message.length()];
+            ByteBuffer.wrap(datagram).put(DATA).putInt(listenPort).putInt(nextSendSeq);
+            message.copyTo(datagram, HEADER_LENGTH);
+            sent[nextSendSeq % HISTORY] = datagram;
+            nextSendSeq++;
+            MessageTrace.sent(listenPort, -1, message.text);
+            if (LOG_VOTES) {
+                System.out.println(listenPort + ": Sending to multicast group: " + message);
+            }
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, group));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        private void sendSyncs() {
+            while (running) {
+                try {
+                    sleep(SYNC_INTERVAL);
+                    synchronized (this) {
+                        if (nextSendSeq > 0) {
+                            byte[] sync = new byte[HEADER_LENGTH];
+                            ByteBuffer.wrap(sync).put(SYNC).putInt(listenPort).putInt(nextSendSeq);
+                            socket.send(new DatagramPacket(sync, sync.length, group));
+                        }
+                    }
+                } catch (InterruptedException | IOException e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void sendNack(int port, int fromSeq, int toSeq) throws IOException {
+            byte[] nack = new byte[HEADER_LENGTH + 4];
+            ByteBuffer.wrap(nack).put(NACK).putInt(port).putInt(fromSeq).putInt(toSeq);
+            socket.send(new DatagramPacket(nack, nack.length, group));
+        }
+
+        private synchronized void retransmit(int fromSeq, int toSeq) throws IOException {
+            for (int seq = Math.max(fromSeq, nextSendSeq - HISTORY); seq <= toSeq && seq < nextSendSeq; seq++) {
+                System.out.println(listenPort + ": Retransmitting multicast message " + seq);
+                socket.send(new DatagramPacket(sent[seq % HISTORY], sent[seq % HISTORY].length, group));
+            }
+        }
+
+        void closeConnection() {
+            running = false;
+            socket.close();
+            synchronized (deliveries) {
+                deliveries.notify();
+            }
+        }
+    }
+
+
     /**
      * A Custom Exception which is thrown if a Participant is ran with incorrect arguments
      */
@@ -0,0 +1,175 @@
+import java.util.*;
+
+/**
+ * A participant's MESH voting state with no sockets or clock of its own: the votes held this epoch (and those held back
+ * for the next), how many votes are required, the revote flags, and the rules that act on them (propagating a new vote,
+ * giving up on a missing one, when OUTCOME can be sent, the tally, and RESTART). Participant drives it from its
+ * connection threads and the real clock, ConsensusSimulator from simulated events, so both run the same round logic.
+ * Not thread safe, the participant guards it with its own lock.
+ * @author Oscar van Leusen
+ */
+class RoundState {
+    final VoteTable votes = new VoteTable();
+    final VoteTable nextEpochVotes = new VoteTable(); //Votes from participants that received RESTART before this one did
+    int votesRequired = 0;
+    boolean revoting = false;
+    boolean hasSharedVotes = false; //Set once this participant has shared all of its votes, before it sends OUTCOME
+    boolean majorityVoteSent = false;
+    private final Map<Integer, Long> timeVoteMissing = new HashMap<>(); //When each missing vote was first noticed
+    private final Set<Integer> votesGivenUp = new HashSet<>(); //Peers whose missing vote is no longer counted in votesRequired this epoch
+
+    /**
+     * The result of tallying one epoch's votes
+     */
+    static final class Tally {
+        final Map<String, Integer> votesCount = new HashMap<>();
+        final List<String> majorityOptions = new ArrayList<>(); //The options RESTART revotes between if there's no winner
+        String winner; //The option with a majority of the votes, or null
+        boolean tied; //More than one option had the most votes
+    }
+
+    /**
+     * Stores a vote received in the current epoch
+     * @param messageRound Round of the VOTE message carrying the vote
+     * @param round This participant's current round
+     * @return Whether another round is needed to propagate it (PROPAGATE). Votes from rounds before the previous one have
+     * already been superseded by combined votes, so they don't need a round of their own.
+     */
+    boolean voteReceived(int port, String vote, int messageRound, int round) {
+        return votes.put(port, vote) && messageRound >= round - 1;
+    }
+
+    /**
+     * Starts another round of voting, for a PROPAGATE or INCOMPLETE revote
+     */
+    void revote() {
+        revoting = true;
+        hasSharedVotes = false;
+    }
+
+    /**
+     * Starts another round of voting if a peer's connection is lost before every vote has arrived (FAILURE)
+     * @return Whether a revote was started
+     */
+    boolean peerFailed() {
+        if (votes.size() < votesRequired) {
+            revote();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called once a round's votes have been sent to every peer. Round n>1 is the revote, so sending it ends any revote.
+     */
+    void votesShared(int round) {
+        if (round > 1) {
+            revoting = false;
+        }
+        hasSharedVotes = true;
+    }
+
+    /**
+     * @return Whether a round after the first ended without every vote that's required (INCOMPLETE)
+     */
+    boolean votesMissing(int round) {
+        return round > 1 && votes.size() < votesRequired;
+    }
+
+    /**
+     * Notes when each peer's vote was first missing, and stops requiring any that has been missing for 3/4 of the
+     * timeout. Not the full timeout, in case connections to other participants are still being left waiting too.
+     * A peer is only given up on once per epoch.
+     * @param now Current time, in the same units as timeout
+     * @return The peers given up on by this call
+     */
+    List<Integer> giveUpMissingVotes(Collection<Integer> peers, long now, long timeout) {
+        List<Integer> givenUp = new ArrayList<>();
+        for (Integer peer : peers) {
+            if (!votes.contains(peer) && !votesGivenUp.contains(peer)) {
+                Long missingSince = timeVoteMissing.get(peer);
+                if (missingSince == null) {
+                    timeVoteMissing.put(peer, now);
+                } else if (now - missingSince > timeout * 0.75) {
+                    votesRequired--;
+                    votesGivenUp.add(peer);
+                    timeVoteMissing.remove(peer);
+                    givenUp.add(peer);
+                }
+            }
+        }
+        return givenUp;
+    }
+
+    /**
+     * Stops waiting for a peer the Coordinator has removed, unless its vote is already counted or been given up on
+     */
+    void memberRemoved(int port) {
+        if (!votes.contains(port) && votesGivenUp.add(port)) {
+            votesRequired--;
+        }
+    }
+
+    /**
+     * Waits for a rejoined peer's vote again, if it had been given up on
+     */
+    void memberRejoined(int port) {
+        if (votesGivenUp.remove(port)) {
+            votesRequired++;
+        }
+    }
+
+    /**
+     * @param noPeers Whether every peer connection has been lost, there's then nothing left to wait for
+     * @return Whether every required vote has been received and shared, so OUTCOME can be sent
+     */
+    boolean readyForOutcome(int round, boolean noPeers) {
+        return votes.size() >= votesRequired && !revoting && !majorityVoteSent && hasSharedVotes && round > 1 || noPeers;
+    }
+
+    /**
+     * Counts the votes. A single option with more than half of them wins, otherwise RESTART revotes between the tied
+     * options, or every option voted for if one had the most votes but not a majority.
+     */
+    Tally tally() {
+        Tally tally = new Tally();
+        for (String vote : votes.values()) {
+            tally.votesCount.merge(vote, 1, Integer::sum);
+        }
+        int maxVotes = Collections.max(tally.votesCount.values());
+        for (Map.Entry<String, Integer> entry : tally.votesCount.entrySet()) {
+            if (entry.getValue() == maxVotes) {
+                tally.majorityOptions.add(entry.getKey());
+            }
+        }
+        if (tally.majorityOptions.size() == 1 && maxVotes * 2 > votes.size()) {
+            tally.winner = tally.majorityOptions.get(0);
+        } else if (tally.majorityOptions.size() > 1) {
+            tally.tied = true;
+        } else {
+            tally.majorityOptions.clear();
+            tally.majorityOptions.addAll(tally.votesCount.keySet());
+        }
+        return tally;
+    }
+
+    /**
+     * Starts a new epoch on RESTART. Votes already received for it were held back in nextEpochVotes, rather than mixed
+     * into the old tally.
+     * @param members Every member, including this participant, which get a slot each in the vote table
+     * @param peersConnected Peers a vote is expected from. A failed participant's vote can't be expected to propagate
+     *                       (as it was before), nor one from a participant the Coordinator has removed.
+     */
+    void restart(Collection<Integer> members, int port, String chosenVote, int peersConnected) {
+        majorityVoteSent = false;
+        hasSharedVotes = false;
+        timeVoteMissing.clear();
+        votesGivenUp.clear();
+        votes.clear();
+        votes.setMembers(members);
+        votes.putAll(nextEpochVotes);
+        nextEpochVotes.clear();
+        votes.put(port, chosenVote);
+        votesRequired = peersConnected + 1;
+    }
+}
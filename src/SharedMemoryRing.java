@@ -0,0 +1,306 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer/single-consumer ring buffer in a memory-mapped file under /dev/shm, used in place of a TCP
+ * connection between two participants on the same host. One participant writes through outputStream() and the other
+ * reads through inputStream(), neither side makes a syscall while data is flowing.
+ * @author Oscar van Leusen
+ */
+class SharedMemoryRing {
+    private static final Path DIRECTORY = Paths.get(System.getProperty("consensus.sharedMemoryDir", "/dev/shm"));
+    private static final int CAPACITY = 256 * 1024;
+    //Header fields are on separate cache lines so the producer and consumer don't contend
+    private static final int WRITE_POSITION = 0;
+    private static final int READ_POSITION = 64;
+    private static final int CLOSED = 128;
+    private static final int DATA = 192;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final List<SharedMemoryRing> created = new ArrayList<>();
+
+    static {
+        //Lets the reading participant see EOF when this process exits, as it would from a closed socket
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            List<SharedMemoryRing> open;
+            synchronized (created) {
+                open = new ArrayList<>(created);
+            }
+            open.forEach(SharedMemoryRing::close);
+        }));
+    }
+
+    /**
+     * The outcome of the HELLO exchange on a peer connection: the peer's port, and the rings to use in place of the
+     * socket if both participants chose shared memory (otherwise null)
+     */
+    static final class Link {
+        final int peerPort;
+        final SharedMemoryRing outbound;
+        final SharedMemoryRing inbound;
+
+        Link(int peerPort, SharedMemoryRing outbound, SharedMemoryRing inbound) {
+            this.peerPort = peerPort;
+            this.outbound = outbound;
+            this.inbound = inbound;
+        }
+
+        boolean isSharedMemory() {
+            return outbound != null;
+        }
+
+        void setTimeout(int timeout) {
+            if (isSharedMemory()) {
+                outbound.setTimeout(timeout);
+                inbound.setTimeout(timeout);
+            }
+        }
+
+        /**
+         * Watches the socket the HELLO exchange was made over, which stays open but idle while the rings are used. A peer
+         * that is killed or halted never sets CLOSED, but the OS still closes its socket, so the inbound ring then gives
+         * EOF once it has been read to the end.
+         */
+        void watch(Socket socket) {
+            if (!isSharedMemory()) {
+                return;
+            }
+            Thread watcher = new Thread(() -> {
+                try {
+                    InputStream in = socket.getInputStream();
+                    while (true) {
+                        try {
+                            if (in.read() < 0) {
+                                break;
+                            }
+                        } catch (SocketTimeoutException e) {
+                            //The peer timeout applies to the socket too, but only its closing matters here
+                        }
+                    }
+                } catch (IOException e) {
+                    //Reset by the peer, or closed by this participant
+                }
+                inbound.peerLost();
+            }, "shm-watch-" + socket.getLocalPort() + "-" + peerPort);
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private volatile int timeout = 0; //Read timeout in ms, 0 for none (like SO_TIMEOUT)
+    private volatile boolean aborted = false; //Local to this process, unlike CLOSED
+    private volatile boolean peerLost = false; //The peer's socket closed, it may have exited without setting CLOSED
+    private Path peerPath; //File of a ring opened rather than created, removed here if its creator exits without closing
+
+    private SharedMemoryRing(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Whether a connection to this socket's peer can be replaced with shared memory: the peer is on this host, the
+     * shared memory directory is writable, and it hasn't been disabled with -Dconsensus.sharedMemory=false
+     */
+    static boolean isAvailable(Socket socket) {
+        if (!Boolean.parseBoolean(System.getProperty("consensus.sharedMemory", "true")) || !Files.isWritable(DIRECTORY)) {
+            return false;
+        }
+        InetAddress address = socket.getInetAddress();
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the ring this participant writes to for the participant at toPort
+     * @param id Unique to this connection (sent to the peer in HELLO), so a file left behind by an earlier run is never opened
+     */
+    static SharedMemoryRing create(int fromPort, int toPort, UUID id) throws IOException {
+        Path path = DIRECTORY.resolve(name(fromPort, toPort, id));
+        //Mapped under a temporary name then renamed, so the reader never sees a partially created file
+        Path temp = DIRECTORY.resolve(name(fromPort, toPort, id) + ".tmp");
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+            file.setLength(0);
+            file.setLength(DATA + CAPACITY);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA + CAPACITY);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SharedMemoryRing ring = new SharedMemoryRing(path, buffer);
+        synchronized (created) {
+            created.add(ring);
+        }
+        return ring;
+    }
+
+    /**
+     * Opens the ring the participant at fromPort writes to for this participant, waiting up to waitTime ms for it to be created
+     */
+    static SharedMemoryRing open(int fromPort, int toPort, UUID id, int waitTime) throws IOException {
+        File file = DIRECTORY.resolve(name(fromPort, toPort, id)).toFile();
+        long start = System.currentTimeMillis();
+        while (!file.exists()) {
+            if (System.currentTimeMillis() - start > waitTime) {
+                throw new SocketTimeoutException("Shared memory ring " + file + " was not created");
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //Only the creator removes the file, unless it's lost without closing the ring (see peerLost())
+            SharedMemoryRing ring = new SharedMemoryRing(null, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA + CAPACITY));
+            ring.peerPath = file.toPath();
+            return ring;
+        }
+    }
+
+    private static String name(int fromPort, int toPort, UUID id) {
+        return "consensus-" + fromPort + "-" + toPort + "-" + id;
+    }
+
+    void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Marks the ring closed so the reader gets EOF once it has read everything, and removes the file
+     */
+    void close() {
+        LONGS.setRelease(buffer, CLOSED, 1L);
+        synchronized (created) {
+            created.remove(this); //Participants embedded in a long-running process create many rings
+        }
+        try {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called when the writer's socket closes, so the reader gets EOF once it has read everything even if the writer was
+     * killed before it could set CLOSED. The file is removed too, which a killed writer can't do itself.
+     */
+    void peerLost() {
+        peerLost = true;
+        try {
+            if (peerPath != null) {
+                Files.deleteIfExists(peerPath);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Makes a read blocked on this ring throw a SocketException, as closing a socket does to a thread reading from it
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Waits while nothing can be done, spinning briefly before parking so a busy ring never makes a syscall
+     */
+    private static void backOff(int idleCount) {
+        if (idleCount < 100) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(idleCount < 10_000 ? 50_000 : 1_000_000);
+        }
+    }
+
+    OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                long writePosition = (long) LONGS.getOpaque(buffer, WRITE_POSITION);
+                while (length > 0) {
+                    long start = System.currentTimeMillis();
+                    int idleCount = 0;
+                    long free;
+                    while ((free = CAPACITY - (writePosition - (long) LONGS.getAcquire(buffer, READ_POSITION))) == 0) {
+                        //The reader has stopped consuming, treat it like a full socket buffer on a dead connection
+                        if (timeout > 0 && System.currentTimeMillis() - start > timeout) {
+                            throw new SocketTimeoutException("Shared memory ring " + path + " is full");
+                        }
+                        backOff(idleCount++);
+                    }
+                    int index = (int) (writePosition % CAPACITY);
+                    int chunk = (int) Math.min(Math.min(free, length), CAPACITY - index);
+                    buffer.put(DATA + index, bytes, offset, chunk);
+                    writePosition += chunk;
+                    offset += chunk;
+                    length -= chunk;
+                    LONGS.setRelease(buffer, WRITE_POSITION, writePosition);
+                }
+            }
+        };
+    }
+
+    InputStream inputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                long readPosition = (long) LONGS.getOpaque(buffer, READ_POSITION);
+                long start = System.currentTimeMillis();
+                int idleCount = 0;
+                long available;
+                while ((available = (long) LONGS.getAcquire(buffer, WRITE_POSITION) - readPosition) == 0) {
+                    if ((long) LONGS.getAcquire(buffer, CLOSED) != 0 || peerLost) {
+                        return -1;
+                    }
+                    if (aborted) {
+                        throw new SocketException("Shared memory ring closed");
+                    }
+                    if (timeout > 0 && System.currentTimeMillis() - start > timeout) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    backOff(idleCount++);
+                }
+                int index = (int) (readPosition % CAPACITY);
+                int chunk = (int) Math.min(Math.min(available, length), CAPACITY - index);
+                buffer.get(DATA + index, bytes, offset, chunk);
+                LONGS.setRelease(buffer, READ_POSITION, readPosition + chunk);
+                return chunk;
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The vote received from each participant in the current epoch, held in one slot per participant port. Ports are kept
+ * sorted so a vote's slot is found with a binary search, and storing a vote neither boxes its port nor creates a map
+ * entry. Slots are set up from the membership once per epoch, a port that isn't a member gets a slot when it first votes.
+ * Not thread safe, the participant guards it with its own lock.
+ * @author Oscar van Leusen
+ */
+class VoteTable {
+    private int[] ports = new int[0];
+    private String[] votes = new String[0];
+    private int size = 0; //Number of slots holding a vote
+
+    /**
+     * Gives every member a slot, keeping the votes of members that already had one and dropping any others
+     */
+    void setMembers(Collection<Integer> members) {
+        int[] newPorts = new int[members.size()];
+        int i = 0;
+        for (Integer member : members) {
+            newPorts[i++] = member;
+        }
+        Arrays.sort(newPorts);
+        String[] newVotes = new String[newPorts.length];
+        size = 0;
+        for (int j = 0; j < newPorts.length; j++) {
+            newVotes[j] = get(newPorts[j]);
+            if (newVotes[j] != null) {
+                size++;
+            }
+        }
+        ports = newPorts;
+        votes = newVotes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int port) {
+        return get(port) != null;
+    }
+
+    String get(int port) {
+        int slot = Arrays.binarySearch(ports, port);
+        return slot < 0 ? null : votes[slot];
+    }
+
+    /**
+     * @return Whether this is the first vote from the port
+     */
+    boolean put(int port, String vote) {
+        int slot = Arrays.binarySearch(ports, port);
+        if (slot < 0) {
+            //Not a member when the slots were set up, such as a participant that rejoined
+            slot = -slot - 1;
+            ports = insert(ports, slot, port);
+            String[] newVotes = new String[votes.length + 1];
+            System.arraycopy(votes, 0, newVotes, 0, slot);
+            System.arraycopy(votes, slot, newVotes, slot + 1, votes.length - slot);
+            votes = newVotes;
+        }
+        boolean first = votes[slot] == null;
+        if (first) {
+            size++;
+        }
+        votes[slot] = vote;
+        return first;
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] inserted = new int[array.length + 1];
+        System.arraycopy(array, 0, inserted, 0, index);
+        inserted[index] = value;
+        System.arraycopy(array, index, inserted, index + 1, array.length - index);
+        return inserted;
+    }
+
+    /**
+     * Copies every vote from another table into this one
+     */
+    void putAll(VoteTable other) {
+        for (int i = 0; i < other.ports.length; i++) {
+            if (other.votes[i] != null) {
+                put(other.ports[i], other.votes[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes every vote, keeping the slots
+     */
+    void clear() {
+        Arrays.fill(votes, null);
+        size = 0;
+    }
+
+    /**
+     * @return The ports that have voted, in ascending order
+     */
+    List<Integer> ports() {
+        List<Integer> voted = new ArrayList<>(size);
+        for (int i = 0; i < ports.length; i++) {
+            if (votes[i] != null) {
+                voted.add(ports[i]);
+            }
+        }
+        return voted;
+    }
+
+    /**
+     * @return Every vote, in the order of ports()
+     */
+    List<String> values() {
+        List<String> values = new ArrayList<>(size);
+        for (String vote : votes) {
+            if (vote != null) {
+                values.add(vote);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Appends "<port> <vote> " for every vote, the format of a combined VOTE message
+     */
+    StringBuilder appendTo(StringBuilder text) {
+        for (int i = 0; i < ports.length; i++) {
+            if (votes[i] != null) {
+                text.append(ports[i]).append(" ").append(votes[i]).append(" ");
+            }
+        }
+        return text;
+    }
+}